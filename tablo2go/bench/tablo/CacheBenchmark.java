@@ -0,0 +1,267 @@
+package tablo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exercise Cache with many concurrent fetchers, checking that no update is
+ * lost or overtaken by an older one and that saving while others write
+ * always produces a loadable, consistent file; then measure the throughput
+ * of a contended mix of lookups and updates, against a cache guarded by a
+ * single lock (as a shared Cache would have needed before).
+ *
+ * Usage: CacheBenchmark [seconds [recordings [maxThreads]]]
+ */
+public final class CacheBenchmark {
+
+	/**
+	 * The operations measured, so both caches can be driven the same way.
+	 */
+	private interface Target {
+
+		Map<String, String> get(String address, String recording);
+
+		void put(String address, String recording, Map<String, String> attributes, long fetched);
+
+	}
+
+	/**
+	 * The nested maps of the original cache, behind one lock.
+	 */
+	private static final class LockedCache implements Target {
+
+		private final Map<String, Map<String, Map<String, String>>> content;
+
+		LockedCache() {
+			super();
+			this.content = new TreeMap<>();
+		}
+
+		@Override
+		public synchronized Map<String, String> get(String address, String recording) {
+			Map<String, Map<String, String>> recordings = content.getOrDefault(address, Collections.emptyMap());
+
+			return Collections.unmodifiableMap(recordings.getOrDefault(recording, Collections.emptyMap()));
+		}
+
+		@Override
+		public synchronized void put(String address, String recording, Map<String, String> attributes, long fetched) {
+			content.computeIfAbsent(address, key -> new TreeMap<>()).put(recording, new TreeMap<>(attributes));
+		}
+
+	}
+
+	private static final String[] Tablos = { "10.0.0.10", "10.0.0.11", "10.0.0.12", "10.0.0.13" };
+
+	private static Map<String, String> attributes(long version) {
+		Map<String, String> attributes = new TreeMap<>();
+
+		attributes.put("series", "Series " + (version % 97));
+		attributes.put("size", Long.toString(version * 1024));
+		attributes.put("title", "Episode " + version);
+		attributes.put("version", Long.toString(version));
+
+		return attributes;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+
+	/**
+	 * Answer whether the given attributes are all from the same update.
+	 */
+	private static boolean isConsistent(Map<String, String> attributes) {
+		if (attributes.isEmpty()) {
+			return true;
+		}
+
+		long version = Long.parseLong(attributes.get("version"));
+
+		return attributes.equals(attributes(version));
+	}
+
+	public static void main(String[] args) throws Exception {
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2.0;
+		int recordings = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) // <br/>
+				: Math.max(4, Runtime.getRuntime().availableProcessors());
+
+		stress(seconds, recordings, maxThreads);
+
+		System.out.printf("%-8s %16s %16s%n", "threads", "Cache ops/s", "locked ops/s");
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			Cache cache = new Cache();
+			Target shared = new Target() {
+
+				@Override
+				public Map<String, String> get(String address, String recording) {
+					return cache.getAttributes(address, recording);
+				}
+
+				@Override
+				public void put(String address, String recording, Map<String, String> attributes, long fetched) {
+					cache.putAttributes(address, recording, attributes, fetched);
+				}
+
+			};
+
+			double concurrent = measure(shared, threads, seconds, recordings);
+			double locked = measure(new LockedCache(), threads, seconds, recordings);
+
+			System.out.printf("%-8d %,16.0f %,16.0f%n", // <br/>
+					Integer.valueOf(threads), Double.valueOf(concurrent), Double.valueOf(locked));
+		}
+	}
+
+	/**
+	 * Answer the operations per second achieved by the given number of threads,
+	 * each doing nine lookups for every update.
+	 */
+	private static double measure(Target target, int threads, double seconds, int recordings)
+			throws InterruptedException {
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicLong operations = new AtomicLong();
+		List<Thread> workers = new ArrayList<>();
+
+		for (int i = 0; i < threads; ++i) {
+			workers.add(new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long count = 0;
+
+				while (running.get()) {
+					String address = Tablos[random.nextInt(Tablos.length)];
+					String recording = "/recordings/series/episodes/" + random.nextInt(recordings);
+
+					if (count % 10 == 0) {
+						long version = random.nextLong(1_000_000);
+
+						target.put(address, recording, attributes(version), version);
+					} else {
+						target.get(address, recording);
+					}
+
+					count += 1;
+				}
+
+				operations.addAndGet(count);
+			}));
+		}
+
+		long start = System.nanoTime();
+
+		workers.forEach(Thread::start);
+		Thread.sleep((long) (seconds * 1000));
+		running.set(false);
+
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		return operations.get() / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Run concurrent fetchers, readers and a saver against one cache and
+	 * verify the outcome.
+	 */
+	private static void stress(double seconds, int recordings, int threads) throws Exception {
+		Cache cache = new Cache();
+		AtomicLong clock = new AtomicLong();
+		Map<String, Long> newest = new ConcurrentHashMap<>();
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		AtomicLong saves = new AtomicLong();
+		List<Thread> workers = new ArrayList<>();
+		File file = File.createTempFile("cache-stress-", ".xml");
+
+		for (int i = 0; i < threads; ++i) {
+			boolean writer = i % 2 == 0;
+
+			workers.add(new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+
+				try {
+					while (running.get()) {
+						String address = Tablos[random.nextInt(Tablos.length)];
+						String recording = "/recordings/series/episodes/" + random.nextInt(recordings);
+
+						if (writer) {
+							// a fetch starts, takes a little while, then is cached
+							long version = clock.incrementAndGet();
+
+							Thread.yield();
+							cache.putAttributes(address, recording, attributes(version), version);
+							newest.merge(address + recording, Long.valueOf(version), Math::max);
+						} else {
+							check(isConsistent(cache.getAttributes(address, recording)), "torn read");
+						}
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}));
+		}
+
+		workers.add(new Thread(() -> {
+			try {
+				while (running.get()) {
+					Cache copy = new Cache();
+
+					cache.save(file);
+					copy.load(file);
+
+					for (String address : Tablos) {
+						for (int i = 0; i < recordings; i += 97) {
+							String recording = "/recordings/series/episodes/" + i;
+
+							check(isConsistent(copy.getAttributes(address, recording)), "inconsistent save");
+						}
+					}
+
+					saves.incrementAndGet();
+				}
+			} catch (IOException | RuntimeException e) {
+				failure.compareAndSet(null, e);
+			}
+		}));
+
+		workers.forEach(Thread::start);
+		Thread.sleep((long) (seconds * 1000));
+		running.set(false);
+
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		file.delete();
+
+		if (failure.get() != null) {
+			throw new IllegalStateException("stress test failed", failure.get());
+		}
+
+		newest.forEach((key, version) -> {
+			int split = key.indexOf('/');
+			Map<String, String> attributes = cache.getAttributes(key.substring(0, split), key.substring(split));
+
+			check(version.toString().equals(attributes.get("version")), "lost update for " + key);
+		});
+
+		System.out.printf("stress: OK (%,d updates of %,d recordings, %,d saves)%n", // <br/>
+				Long.valueOf(clock.get()), Integer.valueOf(newest.size()), Long.valueOf(saves.get()));
+	}
+
+}
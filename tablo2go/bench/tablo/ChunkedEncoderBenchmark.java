@@ -0,0 +1,107 @@
+package tablo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import tablo.EditList.Range;
+
+/**
+ * Compare the time needed to encode a video with a single ffmpeg process
+ * against that needed by ChunkedEncoder.
+ *
+ * Usage: ChunkedEncoderBenchmark video.mp4 [chunkSize [workers [crf]]]
+ */
+public final class ChunkedEncoderBenchmark {
+
+	private interface Task {
+
+		void run() throws IOException;
+
+	}
+
+	private static final String FFMPEG = "ffmpeg";
+
+	private static void encodeSingle(String input, List<String> codecOptions, File output) throws IOException {
+		List<String> command = new ArrayList<>();
+
+		command.add(FFMPEG);
+		command.add("-y");
+		command.add("-nostdin");
+		command.add("-loglevel");
+		command.add("error");
+		command.add("-i");
+		command.add(input);
+		command.add("-map");
+		command.add("0:v:0");
+		command.add("-map");
+		command.add("0:a:0");
+		command.addAll(codecOptions);
+		command.add("-codec:a");
+		command.add("aac");
+		command.add("-b:a");
+		command.add("160k");
+		command.add("-f");
+		command.add("mp4");
+		command.add(output.getAbsolutePath());
+
+		ChunkedEncoder.execute(command);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: ChunkedEncoderBenchmark video.mp4 [chunkSize [workers [crf]]]");
+			return;
+		}
+
+		String input = args[0];
+		double chunkSize = args.length > 1 ? Double.parseDouble(args[1]) : 120.0;
+		int workers = args.length > 2 ? Integer.parseInt(args[2]) // <br/>
+				: Math.max(2, Runtime.getRuntime().availableProcessors() / 4);
+		String crf = args.length > 3 ? args[3] : "25";
+		List<String> codecOptions = Arrays.asList( // <br/>
+				"-codec:v", "h264", // <br/>
+				"-crf", crf);
+
+		double duration = CommercialRemover.probeDuration(input);
+		double[] keyFrames = CommercialRemover.probeKeyFrames(input);
+		File single = File.createTempFile("bench-single-", ".mp4");
+		File chunked = File.createTempFile("bench-chunked-", ".mp4");
+
+		try {
+			long singleNanos = time(() -> encodeSingle(input, codecOptions, single));
+			long chunkedNanos = time(() -> new ChunkedEncoder(FFMPEG, codecOptions, chunkSize, workers, // <br/>
+					Runtime.getRuntime().availableProcessors()) // <br/>
+					.encode(input, Collections.singletonList(new Range(0.0, duration)), keyFrames, // <br/>
+							Collections.emptyMap(), chunked));
+
+			report("single process", duration, singleNanos, single);
+			report(String.format("%d workers, %.0fs chunks", Integer.valueOf(workers), Double.valueOf(chunkSize)),
+					duration, chunkedNanos, chunked);
+
+			System.out.printf("speedup: %.2fx%n", Double.valueOf((double) singleNanos / chunkedNanos));
+		} finally {
+			single.delete();
+			chunked.delete();
+		}
+	}
+
+	private static void report(String label, double duration, long nanos, File output) {
+		double seconds = nanos / 1e9;
+
+		System.out.printf("%-28s %8.1f s  %6.2fx realtime  %,d bytes%n", label, // <br/>
+				Double.valueOf(seconds), Double.valueOf(duration / seconds), Long.valueOf(output.length()));
+	}
+
+	private static long time(Task task) throws IOException {
+		long start = System.nanoTime();
+
+		task.run();
+
+		return System.nanoTime() - start;
+	}
+
+}
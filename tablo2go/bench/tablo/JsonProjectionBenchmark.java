@@ -0,0 +1,121 @@
+package tablo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import tablo.util.JsonProjection;
+
+/**
+ * Compare reading the fields of airing metadata with JsonProjection against
+ * parsing the whole document with json-simple and selecting the fields, as
+ * MediaHandler did before: check both produce the same values, then report
+ * the time and the memory allocated per document.
+ *
+ * Usage: JsonProjectionBenchmark [iterations] [file...]
+ */
+public final class JsonProjectionBenchmark {
+
+	/**
+	 * The fields read by MediaHandler, and their counterparts in the
+	 * responses of newer Tablos (the shape of the samples in 'meta').
+	 */
+	private static final List<String> Paths = Arrays.asList( // <br/>
+			"airing_details.datetime", "airing_details.show_title", "episode.number", "episode.orig_air_date",
+			"episode.season_number", "episode.title", "movie_path", "video_details.clean", "video_details.size",
+			"video_details.state", // <br/>
+			"recEpisode.jsonForClient.airDate", "recEpisode.jsonForClient.episodeNumber",
+			"recEpisode.jsonForClient.originalAirDate", "recEpisode.jsonForClient.seasonNumber",
+			"recEpisode.jsonForClient.title", "recEpisode.jsonForClient.video.size",
+			"recEpisode.jsonForClient.video.state", "recMovie.jsonForClient.releaseYear",
+			"recMovie.jsonForClient.title", "recMovieAiring.jsonForClient.airDate",
+			"recMovieAiring.jsonForClient.video.size", "recMovieAiring.jsonForClient.video.state",
+			"recSeries.jsonForClient.title");
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+		List<File> files = new ArrayList<>();
+
+		if (args.length > 1) {
+			for (int i = 1; i < args.length; ++i) {
+				files.add(new File(args[i]));
+			}
+		} else {
+			files.add(new File("meta/Collider-meta.txt"));
+			files.add(new File("meta/WALL-E meta.txt"));
+		}
+
+		JsonProjection projection = JsonProjection.compile(Paths);
+
+		System.out.printf("%-24s %12s %12s %12s %12s%n", "file", "tree ns", "tree bytes", "proj ns",
+				"proj bytes");
+
+		for (File file : files) {
+			String document = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			String[] expected = viaTree(document);
+			String[] actual = viaProjection(projection, document);
+
+			if (!Arrays.equals(expected, actual)) {
+				throw new IllegalStateException(String.format("%s: expected %s but read %s", // <br/>
+						file, Arrays.toString(expected), Arrays.toString(actual)));
+			}
+
+			// warm up both readers before measuring
+			for (int i = 0; i < iterations; ++i) {
+				viaTree(document);
+				viaProjection(projection, document);
+			}
+
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+
+			for (int i = 0; i < iterations; ++i) {
+				viaTree(document);
+			}
+
+			double treeNanos = (System.nanoTime() - start) / (double) iterations;
+			double treeBytes = (allocatedBytes() - bytes) / (double) iterations;
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+
+			for (int i = 0; i < iterations; ++i) {
+				viaProjection(projection, document);
+			}
+
+			double projectionNanos = (System.nanoTime() - start) / (double) iterations;
+			double projectionBytes = (allocatedBytes() - bytes) / (double) iterations;
+
+			System.out.printf("%-24s %,12.0f %,12.0f %,12.0f %,12.0f%n", file.getName(), // <br/>
+					Double.valueOf(treeNanos), Double.valueOf(treeBytes), // <br/>
+					Double.valueOf(projectionNanos), Double.valueOf(projectionBytes));
+		}
+	}
+
+	private static String[] viaProjection(JsonProjection projection, String document) throws IOException {
+		return projection.read(new StringReader(document));
+	}
+
+	private static String[] viaTree(String document) throws IOException {
+		Map<?, ?> meta = (Map<?, ?>) Util.readJSON(new StringReader(document));
+		String[] values = new String[Paths.size()];
+
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = Util.selectUnique(meta, Paths.get(i));
+		}
+
+		return values;
+	}
+
+}
@@ -0,0 +1,227 @@
+package tablo;
+
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable, typed view of the attributes of a recorded airing. Instances
+ * are built once, either from fetched metadata or from the cache, so handlers
+ * need not re-parse strings on every access; all parsing uses java.time so
+ * instances may be freely shared between threads.
+ */
+public final class Airing {
+
+	public enum State {
+
+		FAILED, FINISHED, OTHER, RECORDING;
+
+		static State parse(String text) {
+			if (text.isEmpty()) {
+				// only finished recordings are cached
+				return FINISHED;
+			}
+
+			try {
+				return valueOf(text.toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				return OTHER;
+			}
+		}
+
+	}
+
+	/**
+	 * The format of dates, which (like SimpleDateFormat) also accepts months
+	 * and days without leading zeros.
+	 */
+	private static final DateTimeFormatter LocalDateFormat = DateTimeFormatter.ofPattern("uuuu-M-d", Locale.ROOT);
+
+	/**
+	 * The value of season, episode or size when it is not known.
+	 */
+	public static final int UNKNOWN = -1;
+
+	public static Airing fromAttributes(Map<String, String> attributes) {
+		return new Airing(attributes);
+	}
+
+	private static String get(Map<String, String> attributes, String key) {
+		return attributes.getOrDefault(key, "").trim();
+	}
+
+	private static String normalize(String text) {
+		return text.replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+
+	private static Instant parseInstant(String text) {
+		if (!text.isEmpty()) {
+			try {
+				return ZonedDateTime.parse(text, DateTimeFormatter.ISO_DATE_TIME).toInstant();
+			} catch (DateTimeParseException e) {
+				// ignore
+			}
+		}
+
+		return null;
+	}
+
+	private static int parseInt(String text, int otherwise) {
+		try {
+			return Integer.parseInt(text);
+		} catch (NumberFormatException e) {
+			return otherwise;
+		}
+	}
+
+	/**
+	 * Parse the date at the start of the given text, ignoring anything
+	 * which follows (e.g. the time in "2018-02-28 21:00").
+	 */
+	private static LocalDate parseLocalDate(String text) {
+		if (!text.isEmpty()) {
+			try {
+				return LocalDate.from(LocalDateFormat.parse(text, new ParsePosition(0)));
+			} catch (DateTimeException e) {
+				// ignore
+			}
+		}
+
+		return null;
+	}
+
+	private static long parseLong(String text, long otherwise) {
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			return otherwise;
+		}
+	}
+
+	private final Instant airTime;
+
+	private final boolean clean;
+
+	private final int episode;
+
+	private final LocalDate originalAirDate;
+
+	private final int season;
+
+	private final String series;
+
+	private final long size;
+
+	private final State state;
+
+	private final String title;
+
+	private final int year;
+
+	private Airing(Map<String, String> attributes) {
+		super();
+		this.airTime = parseInstant(get(attributes, "airDate"));
+		this.clean = !"false".equalsIgnoreCase(get(attributes, "clean"));
+		this.episode = parseInt(get(attributes, "episode"), UNKNOWN);
+		this.originalAirDate = parseLocalDate(get(attributes, "originalAirDate"));
+		this.season = parseInt(get(attributes, "season"), UNKNOWN);
+		this.series = get(attributes, "series");
+		this.size = parseLong(get(attributes, "size"), UNKNOWN);
+		this.state = State.parse(get(attributes, "state"));
+		this.title = get(attributes, "title");
+		this.year = parseInt(get(attributes, "year"), 0);
+	}
+
+	/**
+	 * @return the time the recording started, or null if not known
+	 */
+	public Instant getAirTime() {
+		return airTime;
+	}
+
+	/**
+	 * Answer a key which identifies the content of this airing, so that
+	 * copies of the same episode or movie (e.g. on different Tablos) can
+	 * be recognized, or null if the content cannot be reliably identified.
+	 * Tablos report season and episode 0 for unnumbered episodes (e.g. of
+	 * daily shows), so those are identified by title and air date instead.
+	 */
+	public String getContentKey() {
+		if (!series.isEmpty()) {
+			if (season > 0 && episode > 0) {
+				return String.format("episode|%s|%d|%d", normalize(series), Integer.valueOf(season),
+						Integer.valueOf(episode));
+			}
+
+			if (originalAirDate != null && !title.isEmpty()) {
+				return String.format("episode|%s|%s|%s", normalize(series), normalize(title), originalAirDate);
+			}
+		} else if (year != 0 && !title.isEmpty()) {
+			return String.format("movie|%s|%d", normalize(title), Integer.valueOf(year));
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the episode number or UNKNOWN
+	 */
+	public int getEpisode() {
+		return episode;
+	}
+
+	/**
+	 * @return the date the episode was first broadcast, or null if not known
+	 */
+	public LocalDate getOriginalAirDate() {
+		return originalAirDate;
+	}
+
+	/**
+	 * @return the season number or UNKNOWN
+	 */
+	public int getSeason() {
+		return season;
+	}
+
+	public String getSeries() {
+		return series;
+	}
+
+	/**
+	 * @return the size of the recording in bytes or UNKNOWN
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return the year of release (of movies) or zero if not known
+	 */
+	public int getYear() {
+		return year;
+	}
+
+	public boolean isClean() {
+		return clean;
+	}
+
+	public boolean isFinished() {
+		return state == State.FINISHED;
+	}
+
+}
@@ -0,0 +1,157 @@
+package tablo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import tablo.io.MediaInputStream;
+import tablo.io.ThrottledInputStream;
+import tablo.io.TokenBucket;
+
+/**
+ * The limits on the rate at which recordings are read from each Tablo,
+ * and from all Tablos together. The limits can be changed while running
+ * by commands on standard input:
+ *
+ * <pre>
+ * rate 2M             limit each Tablo to 2 MB/s
+ * rate 10.0.0.5 500k  limit one Tablo to 500 kB/s
+ * total 0             remove the overall limit
+ * </pre>
+ */
+public final class BandwidthLimits {
+
+	private static final Pattern RatePattern = Pattern.compile("([\\d.]+)\\s*([kmg]?)b?", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Answer the limits described by the "rateLimit" (per Tablo) and
+	 * "totalRateLimit" options, or null if neither option is set.
+	 */
+	public static BandwidthLimits fromOptions(Map<String, String> options) {
+		String perTablo = options.get("rateLimit");
+		String total = options.get("totalRateLimit");
+
+		if (perTablo == null && total == null) {
+			return null;
+		}
+
+		return new BandwidthLimits(parseRate(perTablo), parseRate(total));
+	}
+
+	private static String formatRate(double rate) {
+		return rate > 0 ? String.format("%.0f bytes/s", Double.valueOf(rate)) : "an unlimited rate";
+	}
+
+	/**
+	 * Parse a rate in bytes per second, with an optional suffix
+	 * of 'k', 'M' or 'G'. An absent value means no limit (zero).
+	 *
+	 * @throws IllegalArgumentException if the rate is not valid
+	 */
+	public static double parseRate(String text) {
+		if (text == null || (text = text.trim()).isEmpty()) {
+			return 0.0;
+		}
+
+		Matcher matcher = RatePattern.matcher(text);
+
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException("Invalid rate: " + text);
+		}
+
+		double rate;
+
+		try {
+			rate = Double.parseDouble(matcher.group(1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid rate: " + text, e);
+		}
+
+		// each of 'k', 'M' and 'G' is a further factor of 1024
+		String suffix = matcher.group(2).toLowerCase(Locale.ROOT);
+		int power = suffix.isEmpty() ? 0 : "kmg".indexOf(suffix) + 1;
+
+		return rate * Math.pow(1024, power);
+	}
+
+	private final Map<String, TokenBucket> buckets;
+
+	private volatile double perTablo;
+
+	private final TokenBucket total;
+
+	private BandwidthLimits(double perTablo, double total) {
+		super();
+		this.buckets = new ConcurrentHashMap<>();
+		this.perTablo = perTablo;
+		this.total = new TokenBucket(total);
+	}
+
+	private void execute(String command) {
+		String[] words = command.trim().split("\\s+");
+
+		try {
+			if (words.length == 2 && "rate".equalsIgnoreCase(words[0])) {
+				perTablo = parseRate(words[1]);
+				buckets.values().forEach(bucket -> bucket.setRate(perTablo));
+				System.out.println("Limited each Tablo to " + formatRate(perTablo));
+			} else if (words.length == 3 && "rate".equalsIgnoreCase(words[0])) {
+				double rate = parseRate(words[2]);
+
+				getBucket(words[1]).setRate(rate);
+				System.out.println("Limited " + words[1] + " to " + formatRate(rate));
+			} else if (words.length == 2 && "total".equalsIgnoreCase(words[0])) {
+				double rate = parseRate(words[1]);
+
+				total.setRate(rate);
+				System.out.println("Limited all Tablos to " + formatRate(rate));
+			} else if (!command.trim().isEmpty()) {
+				System.err.println("Unrecognized command: " + command.trim());
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getLocalizedMessage());
+		}
+	}
+
+	private TokenBucket getBucket(String tablo) {
+		return buckets.computeIfAbsent(tablo, key -> new TokenBucket(perTablo));
+	}
+
+	/**
+	 * Consume commands from the given stream in a background thread.
+	 */
+	public void listen(InputStream commands) {
+		Thread reader = new Thread(() -> {
+			try (BufferedReader lines = new BufferedReader(new InputStreamReader(commands, StandardCharsets.UTF_8))) {
+				String line;
+
+				while ((line = lines.readLine()) != null) {
+					execute(line);
+				}
+			} catch (IOException e) {
+				// no more commands
+			}
+		}, "bandwidth-commands");
+
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Open the given media (a playlist or video) from the given Tablo,
+	 * reading no faster than the limits permit.
+	 */
+	public InputStream open(String tablo, URL media) throws IOException {
+		return new ThrottledInputStream(MediaInputStream.open(media), Arrays.asList(getBucket(tablo), total));
+	}
+
+}
@@ -0,0 +1,202 @@
+package tablo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import tablo.EditList.Range;
+
+/**
+ * Finds candidate commercial breaks from the log of an ffmpeg process
+ * running the 'blackdetect' and 'silencedetect' filters. A point where
+ * the picture is black and the audio is silent is a likely boundary
+ * between programme and commercial; a run of such boundaries close
+ * together is taken to be a commercial break.
+ */
+public final class BreakDetector {
+
+	private static final Pattern BlackPattern = Pattern.compile("black_start:\\s*([\\d.]+)\\s+black_end:\\s*([\\d.]+)");
+
+	/**
+	 * The longest gap, in seconds, between boundaries within a single break.
+	 */
+	private static final double MaxGap = 130.0;
+
+	/**
+	 * The longest plausible commercial break, in seconds.
+	 */
+	private static final double MaxLength = 420.0;
+
+	/**
+	 * The shortest plausible commercial break, in seconds.
+	 */
+	private static final double MinLength = 30.0;
+
+	private static final Pattern SilenceEndPattern = Pattern.compile("silence_end:\\s*([\\d.]+)");
+
+	private static final Pattern SilenceStartPattern = Pattern.compile("silence_start:\\s*([\\d.]+)");
+
+	private static List<Range> findBreaks(List<Double> boundaries) {
+		List<Range> breaks = new ArrayList<>();
+
+		for (int first = 0, count = boundaries.size(); first < count;) {
+			int last = first;
+
+			while (last + 1 < count // <br/>
+					&& boundaries.get(last + 1).doubleValue() - boundaries.get(last).doubleValue() <= MaxGap) {
+				++last;
+			}
+
+			double start = boundaries.get(first).doubleValue();
+			double end = boundaries.get(last).doubleValue();
+			double length = end - start;
+
+			if (MinLength <= length && length <= MaxLength) {
+				breaks.add(new Range(start, end));
+			}
+
+			first = last + 1;
+		}
+
+		return breaks;
+	}
+
+	/**
+	 * Answer the ffmpeg arguments for an additional output which runs the
+	 * detection filters on the first video and audio streams.
+	 */
+	public static List<String> getOutputOptions() {
+		List<String> options = new ArrayList<>();
+
+		options.add("-map");
+		options.add("0:v:0");
+
+		options.add("-vf");
+		options.add("blackdetect=d=0.1:pix_th=0.10");
+
+		options.add("-map");
+		options.add("0:a:0");
+
+		options.add("-af");
+		options.add("silencedetect=noise=-50dB:d=0.2");
+
+		options.add("-f");
+		options.add("null");
+
+		options.add("-");
+
+		return options;
+	}
+
+	private static boolean isError(String line) {
+		return line.contains("[error]") || line.contains("[fatal]") || line.contains("[panic]");
+	}
+
+	private final List<Range> blacks;
+
+	private Thread reader;
+
+	private final List<Range> silences;
+
+	private double silenceStart;
+
+	public BreakDetector() {
+		super();
+		this.blacks = new ArrayList<>();
+		this.reader = null;
+		this.silences = new ArrayList<>();
+		this.silenceStart = Double.NaN;
+	}
+
+	/**
+	 * Process one line of ffmpeg log output.
+	 */
+	void accept(String line) {
+		Matcher matcher;
+
+		if ((matcher = BlackPattern.matcher(line)).find()) {
+			blacks.add(new Range(Double.parseDouble(matcher.group(1)), Double.parseDouble(matcher.group(2))));
+		} else if ((matcher = SilenceStartPattern.matcher(line)).find()) {
+			silenceStart = Double.parseDouble(matcher.group(1));
+		} else if ((matcher = SilenceEndPattern.matcher(line)).find()) {
+			if (!Double.isNaN(silenceStart)) {
+				silences.add(new Range(silenceStart, Double.parseDouble(matcher.group(1))));
+				silenceStart = Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Wait for the log to be consumed, then answer the commercial breaks found.
+	 */
+	public EditList finish() {
+		if (reader != null) {
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			return new EditList(findBreaks(findBoundaries()));
+		}
+	}
+
+	/**
+	 * Answer the midpoints of the times which are both black and silent.
+	 */
+	private List<Double> findBoundaries() {
+		List<Double> boundaries = new ArrayList<>();
+
+		for (Range black : blacks) {
+			for (Range silence : silences) {
+				double start = Math.max(black.start, silence.start);
+				double end = Math.min(black.end, silence.end);
+
+				if (start <= end) {
+					boundaries.add(Double.valueOf((start + end) / 2));
+					break;
+				}
+			}
+		}
+
+		boundaries.sort(null);
+
+		return boundaries;
+	}
+
+	/**
+	 * Consume the given ffmpeg log (written with '-loglevel level+info') in
+	 * a background thread; error messages are forwarded to System.err.
+	 */
+	public void monitor(InputStream log) {
+		reader = new Thread(() -> {
+			try (BufferedReader lines = new BufferedReader(new InputStreamReader(log, StandardCharsets.UTF_8))) {
+				String line;
+
+				while ((line = lines.readLine()) != null) {
+					if (isError(line)) {
+						System.err.println(line);
+					}
+
+					synchronized (this) {
+						accept(line);
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Failed to read ffmpeg output: " + e.getLocalizedMessage());
+			}
+		}, "break-detector");
+
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+}
@@ -9,8 +9,12 @@ import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.function.Function;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -29,11 +33,20 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+/**
+ * The attributes of recordings, by Tablo, and of the objects they belong to
+ * (movies and series), so those are fetched once rather than once for each
+ * airing; the latter are kept for a limited time, as nothing records which
+ * are still referenced. The cache may be shared by concurrent scans: each
+ * Tablo has a concurrent map of recordings whose attributes are immutable,
+ * so saving (which works from a snapshot) never blocks writers, and an
+ * update only replaces attributes fetched earlier.
+ */
 public class Cache {
 
 	//  <cache>
 	//    <tablo ip="10.1.9.90">
-	//      <recording id="/recordings/series/episodes/298492">
+	//      <recording id="/recordings/series/episodes/298492" fetched="1519869600000">
 	//        <attribute name="airDate" value="2018-02-28 21:00" />
 	//        <attribute name="episode" value="5" />
 	//        <attribute name="originalAirDate" value="2018-02-28 21:00" />
@@ -42,40 +55,44 @@ public class Cache {
 	//        <attribute name="size" value="1291988992" />
 	//        <attribute name="title" value="Stranger Calling" />
 	//      </recording>
+	//      <parent id="/recordings/movies/9512" fetched="1519869600000">
+	//        <attribute name="movie.release_year" value="2008" />
+	//      </parent>
 	//    </tablo>
 	//  </cache>
 
-	private static final String TagAttribute = "attribute";
-	private static final String TagCache = "cache";
-	private static final String TagRecording = "recording";
-	private static final String TagTablo = "tablo";
+	/**
+	 * The attributes of one recording, and when they were fetched
+	 * (in milliseconds since the epoch, or zero if unknown).
+	 */
+	private static final class Entry {
 
-	private static void addRecording(Map<String, String> attributes, Node recording) {
-		NodeList children = recording.getChildNodes();
+		final Map<String, String> attributes;
 
-		for (int i = 0, n = children.getLength(); i < n; ++i) {
-			Node node = children.item(i);
-
-			if (!(node instanceof Element)) {
-				continue;
-			}
+		final long fetched;
 
-			Element attribute = (Element) node;
+		Entry(Map<String, String> attributes, long fetched) {
+			super();
+			this.attributes = attributes;
+			this.fetched = fetched;
+		}
 
-			if (!TagAttribute.equals(attribute.getTagName())) {
-				continue;
-			}
+	}
 
-			Attr name = attribute.getAttributeNode("name");
-			Attr value = attribute.getAttributeNode("value");
+	/**
+	 * How long, in milliseconds, the attributes of a parent object are kept
+	 * after they are fetched. The parents of deleted recordings are forgotten
+	 * after this time; others are fetched again.
+	 */
+	private static final long ParentLifetime = TimeUnit.DAYS.toMillis(30);
 
-			if (name != null && value != null) {
-				attributes.put(name.getValue(), value.getValue());
-			}
-		}
-	}
+	private static final String TagAttribute = "attribute";
+	private static final String TagCache = "cache";
+	private static final String TagParent = "parent";
+	private static final String TagRecording = "recording";
+	private static final String TagTablo = "tablo";
 
-	private static void addRecordings(Map<String, Map<String, String>> tablo, Node root) {
+	private static void addEntries(Map<String, Entry> tablo, Node root, String tag) {
 		NodeList children = root.getChildNodes();
 
 		for (int i = 0, n = children.getLength(); i < n; ++i) {
@@ -87,24 +104,20 @@ public class Cache {
 
 			Element element = (Element) node;
 
-			if (!TagRecording.equals(element.getTagName())) {
+			if (!tag.equals(element.getTagName())) {
 				continue;
 			}
 
 			Attr id = element.getAttributeNode("id");
 
 			if (id != null) {
-				addRecording(tablo.computeIfAbsent(id.getValue(), attributeMapSupplier()), node);
+				tablo.put(id.getValue(), new Entry(readAttributes(node), parseTime(element.getAttribute("fetched"))));
 			}
 		}
 	}
 
-	private static Function<String, Map<String, String>> attributeMapSupplier() {
-		return addr -> newAttributeMap();
-	}
-
-	private static Map<String, String> newAttributeMap() {
-		return new TreeMap<>();
+	private static boolean isCurrent(Entry parent, long now) {
+		return now - parent.fetched < ParentLifetime;
 	}
 
 	private static Element newChildElement(Node parent, String name) {
@@ -124,8 +137,58 @@ public class Cache {
 		}
 	}
 
-	private static Function<String, Map<String, Map<String, String>>> recordingMapSupplier() {
-		return addr -> new TreeMap<>();
+	private static long parseTime(String text) {
+		try {
+			return text.isEmpty() ? 0 : Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static void put(ConcurrentMap<String, Entry> entries, String id, Map<String, String> attributes,
+			long fetched) {
+		Entry update = new Entry(Collections.unmodifiableMap(new TreeMap<>(attributes)), fetched);
+
+		entries.merge(id, update, (current, proposed) -> proposed.fetched >= current.fetched ? proposed : current);
+	}
+
+	private static Map<String, String> readAttributes(Node recording) {
+		Map<String, String> attributes = new TreeMap<>();
+		NodeList children = recording.getChildNodes();
+
+		for (int i = 0, n = children.getLength(); i < n; ++i) {
+			Node node = children.item(i);
+
+			if (!(node instanceof Element)) {
+				continue;
+			}
+
+			Element attribute = (Element) node;
+
+			if (!TagAttribute.equals(attribute.getTagName())) {
+				continue;
+			}
+
+			Attr name = attribute.getAttributeNode("name");
+			Attr value = attribute.getAttributeNode("value");
+
+			if (name != null && value != null) {
+				attributes.put(name.getValue(), value.getValue());
+			}
+		}
+
+		return Collections.unmodifiableMap(attributes);
+	}
+
+	/**
+	 * Answer a sorted copy of the given content; the entries themselves are immutable.
+	 */
+	private static Map<String, Map<String, Entry>> snapshot(Map<String, ConcurrentMap<String, Entry>> entries) {
+		Map<String, Map<String, Entry>> copy = new TreeMap<>();
+
+		entries.forEach((ip, recordings) -> copy.put(ip, new TreeMap<>(recordings)));
+
+		return copy;
 	}
 
 	private static void xmlAddAttribute(Element recording, String name, String value) {
@@ -135,33 +198,63 @@ public class Cache {
 		attribute.setAttribute("value", value);
 	}
 
-	private static void xmlAddRecording(Element tablo, String id, Map<String, String> attributes) {
-		Element recording = newChildElement(tablo, TagRecording);
+	private static void xmlAddRecording(Element tablo, String tag, String id, Entry entry) {
+		Element recording = newChildElement(tablo, tag);
 
 		recording.setAttribute("id", id);
-		attributes.forEach((name, value) -> xmlAddAttribute(recording, name, value));
+
+		if (entry.fetched != 0) {
+			recording.setAttribute("fetched", Long.toString(entry.fetched));
+		}
+
+		entry.attributes.forEach((name, value) -> xmlAddAttribute(recording, name, value));
 	}
 
-	private static void xmlAddRecordings(Element root, String ip, Map<String, Map<String, String>> recordings) {
+	private static void xmlAddRecordings(Element root, String ip, Map<String, Entry> recordings,
+			Map<String, Entry> parents) {
 		Element tablo = newChildElement(root, TagTablo);
 
 		tablo.setAttribute("ip", ip);
-		recordings.forEach((id, attributes) -> xmlAddRecording(tablo, id, attributes));
+		recordings.forEach((id, attributes) -> xmlAddRecording(tablo, TagRecording, id, attributes));
+		parents.forEach((id, attributes) -> xmlAddRecording(tablo, TagParent, id, attributes));
 	}
 
-	// ip -> (recording -> (attr -> value))
-	private final Map<String, Map<String, Map<String, String>>> content;
+	// ip -> (recording -> entry)
+	private final ConcurrentMap<String, ConcurrentMap<String, Entry>> content;
+
+	// ip -> (parent -> entry)
+	private final ConcurrentMap<String, ConcurrentMap<String, Entry>> parents;
 
 	public Cache() {
 		super();
-		this.content = new TreeMap<>();
+		this.content = new ConcurrentHashMap<>();
+		this.parents = new ConcurrentHashMap<>();
 	}
 
 	public Map<String, String> getAttributes(String address, String recording) {
-		Map<String, Map<String, String>> recordings = content.getOrDefault(address, Collections.emptyMap());
-		Map<String, String> attributes = recordings.getOrDefault(recording, Collections.emptyMap());
+		Map<String, Entry> recordings = content.get(address);
+		Entry entry = recordings != null ? recordings.get(recording) : null;
 
-		return Collections.unmodifiableMap(attributes);
+		return entry != null ? entry.attributes : Collections.emptyMap();
+	}
+
+	/**
+	 * Answer the cached attributes of the given parent object,
+	 * or null if it is not cached (or has expired).
+	 */
+	public Map<String, String> getParent(String address, String parent) {
+		Map<String, Entry> entries = parents.get(address);
+		Entry entry = entries != null ? entries.get(parent) : null;
+
+		return entry != null && isCurrent(entry, System.currentTimeMillis()) ? entry.attributes : null;
+	}
+
+	private ConcurrentMap<String, Entry> getParents(String address) {
+		return parents.computeIfAbsent(address, key -> new ConcurrentHashMap<>());
+	}
+
+	private ConcurrentMap<String, Entry> getRecordings(String address) {
+		return content.computeIfAbsent(address, key -> new ConcurrentHashMap<>());
 	}
 
 	public void load(File file) throws IOException {
@@ -197,29 +290,59 @@ public class Cache {
 			Attr address = element.getAttributeNode("ip");
 
 			if (address != null) {
-				addRecordings(content.computeIfAbsent(address.getValue(), recordingMapSupplier()), node);
+				addEntries(getRecordings(address.getValue()), node, TagRecording);
+				addEntries(getParents(address.getValue()), node, TagParent);
 			}
 		}
 	}
 
-	public void putAttributes(String address, String recording, Map<String, String> attributes) {
-		Map<String, String> copy = newAttributeMap();
-
-		copy.putAll(attributes);
+	/**
+	 * Remember the given attributes of a recording, unless the cache holds
+	 * attributes which were fetched later.
+	 *
+	 * @param fetched when the attributes were fetched, in milliseconds since the epoch
+	 */
+	public void putAttributes(String address, String recording, Map<String, String> attributes, long fetched) {
+		put(getRecordings(address), recording, attributes, fetched);
+	}
 
-		content.computeIfAbsent(address, recordingMapSupplier()) // <br/>
-				.put(recording, copy);
+	/**
+	 * Remember the given attributes of a parent object, unless the cache
+	 * holds attributes which were fetched later.
+	 *
+	 * @param fetched when the attributes were fetched, in milliseconds since the epoch
+	 */
+	public void putParent(String address, String parent, Map<String, String> attributes, long fetched) {
+		put(getParents(address), parent, attributes, fetched);
 	}
 
 	public void retainRecordings(String address, Collection<String> recordings) {
-		content.getOrDefault(address, Collections.emptyMap()).keySet().retainAll(recordings);
+		Map<String, Entry> entries = content.get(address);
+
+		if (entries != null) {
+			entries.keySet().retainAll(recordings);
+		}
 	}
 
 	public void save(File file) throws IOException {
 		Document document = newDocumentBuilder().newDocument();
 		Element cache = newChildElement(document, TagCache);
 
-		content.forEach((ip, recordings) -> xmlAddRecordings(cache, ip, recordings));
+		Map<String, Map<String, Entry>> recordingsCopy = snapshot(content);
+		Map<String, Map<String, Entry>> parentsCopy = snapshot(parents);
+		long now = System.currentTimeMillis();
+
+		parentsCopy.values().forEach(entries -> entries.values().removeIf(entry -> !isCurrent(entry, now)));
+
+		Set<String> addresses = new TreeSet<>(recordingsCopy.keySet());
+
+		addresses.addAll(parentsCopy.keySet());
+
+		for (String ip : addresses) {
+			xmlAddRecordings(cache, ip, // <br/>
+					recordingsCopy.getOrDefault(ip, Collections.emptyMap()), // <br/>
+					parentsCopy.getOrDefault(ip, Collections.emptyMap()));
+		}
 
 		try (OutputStream out = new FileOutputStream(file)) {
 			Transformer transformer = TransformerFactory.newInstance().newTransformer();
@@ -0,0 +1,369 @@
+package tablo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import tablo.EditList.Range;
+import tablo.io.Connections;
+import tablo.util.Events;
+
+/**
+ * Encodes a long video by splitting it into chunks which start at key frames,
+ * encoding the chunks concurrently in separate ffmpeg processes, and then
+ * joining the results without further re-encoding. The audio is encoded once,
+ * alongside the chunks: each AAC encode starts with priming samples, so audio
+ * encoded per chunk would have a gap at every join.
+ */
+public final class ChunkedEncoder {
+
+	private static final List<String> AudioOptions = List.of("-codec:a", "aac", "-b:a", "160k");
+
+	/**
+	 * Produce the complex filter which joins the given ranges of the audio of
+	 * the first input (as [a]), for example:
+	 *
+	 * <pre>
+	 *	[0:a] asplit=2 [t0][t1];
+	 *	 [t0] atrim=0.00:814.15, asetpts=PTS-STARTPTS [a0];
+	 *	 [t1] atrim=1043.14:1664.36, asetpts=PTS-STARTPTS [a1];
+	 *	 [a0][a1] concat=n=2:v=0:a=1 [a]
+	 * </pre>
+	 */
+	private static String audioFilter(List<Range> ranges) {
+		StringBuilder filter = new StringBuilder();
+		int count = ranges.size();
+
+		filter.append("[0:a] asplit=").append(count).append(' ');
+
+		for (int i = 0; i < count; ++i) {
+			CommercialRemover.appendPad(filter, 't', i);
+		}
+
+		for (int i = 0; i < count; ++i) {
+			Range range = ranges.get(i);
+
+			filter.append("; ");
+			CommercialRemover.appendPad(filter, 't', i);
+			filter.append(" atrim=").append(EditList.format(range.start)).append(':') // <br/>
+					.append(EditList.format(range.end)).append(", asetpts=PTS-STARTPTS ");
+			CommercialRemover.appendPad(filter, 'a', i);
+		}
+
+		filter.append("; ");
+
+		for (int i = 0; i < count; ++i) {
+			CommercialRemover.appendPad(filter, 'a', i);
+		}
+
+		filter.append(" concat=n=").append(count).append(":v=0:a=1 [a]");
+
+		return filter.toString();
+	}
+
+	/**
+	 * Run the given command, waiting for it to complete.
+	 */
+	static void execute(List<String> command) throws IOException {
+		Events.FfmpegJob event = new Events.FfmpegJob();
+
+		event.begin();
+
+		Process process = new ProcessBuilder(command) // <br/>
+				.redirectError(ProcessBuilder.Redirect.INHERIT) // <br/>
+				.redirectOutput(ProcessBuilder.Redirect.INHERIT) // <br/>
+				.start();
+
+		try {
+			process.getOutputStream().close();
+
+			int status = process.waitFor();
+
+			event.exitCode = status;
+			event.output = command.get(command.size() - 1);
+			Events.commit(event);
+
+			if (status != 0) {
+				throw new IOException(command.get(1) + " failed with exit code " + status);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Split the given ranges into chunks of at least chunkSeconds (except the
+	 * last chunk of each range), each starting at a key frame or at the start
+	 * of the range.
+	 */
+	public static List<Range> split(List<Range> ranges, double[] keyFrames, double chunkSeconds) {
+		List<Range> chunks = new ArrayList<>();
+
+		for (Range range : ranges) {
+			double chunkStart = range.start;
+
+			for (double keyFrame : keyFrames) {
+				if (keyFrame >= range.end) {
+					break;
+				}
+
+				if (keyFrame - chunkStart >= chunkSeconds) {
+					chunks.add(new Range(chunkStart, keyFrame));
+					chunkStart = keyFrame;
+				}
+			}
+
+			if (chunkStart < range.end) {
+				chunks.add(new Range(chunkStart, range.end));
+			}
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * Write a list of files in the form expected by the concat demuxer.
+	 */
+	static void writeConcatList(List<File> pieces, File listFile) throws IOException {
+		try (PrintWriter list = new PrintWriter(listFile, StandardCharsets.UTF_8)) {
+			for (File piece : pieces) {
+				String path = piece.getAbsolutePath().replace("'", "'\\''");
+
+				list.printf("file '%s'%n", path);
+			}
+		}
+	}
+
+	private final double chunkSeconds;
+
+	private final List<String> codecOptions;
+
+	/**
+	 * The number of cores the workers share.
+	 */
+	private final int cores;
+
+	private final String ffmpeg;
+
+	private final int workers;
+
+	/**
+	 * @param ffmpeg how to locate ffmpeg
+	 * @param codecOptions the ffmpeg options that select and configure the video codec
+	 * @param chunkSeconds the target length of each chunk
+	 * @param workers the number of chunks to encode concurrently
+	 * @param cores the number of cores the encode may use, shared by the workers
+	 */
+	public ChunkedEncoder(String ffmpeg, List<String> codecOptions, double chunkSeconds, int workers, int cores) {
+		super();
+		this.chunkSeconds = chunkSeconds;
+		this.codecOptions = new ArrayList<>(codecOptions);
+		this.cores = Math.max(1, cores);
+		this.ffmpeg = ffmpeg;
+		this.workers = Math.max(1, workers);
+	}
+
+	private void concat(List<File> pieces, File audio, Map<String, String> metadata, File output) throws IOException {
+		File listFile = File.createTempFile("chunks-", ".txt", output.getAbsoluteFile().getParentFile());
+
+		try {
+			writeConcatList(pieces, listFile);
+
+			List<String> command = newCommand();
+
+			command.add("-f");
+			command.add("concat");
+
+			command.add("-safe");
+			command.add("0");
+
+			command.add("-i");
+			command.add(listFile.getAbsolutePath());
+
+			command.add("-i");
+			command.add(audio.getAbsolutePath());
+
+			command.add("-map");
+			command.add("0:v:0");
+
+			command.add("-map");
+			command.add("1:a:0");
+
+			command.add("-codec");
+			command.add("copy");
+
+			metadata.forEach((key, value) -> {
+				command.add("-metadata");
+				command.add(key + "=" + value.replaceAll("'", "%27"));
+			});
+
+			command.add("-movflags");
+			command.add("+faststart");
+
+			command.add("-f");
+			command.add("mp4");
+
+			command.add(output.getAbsolutePath());
+
+			execute(command);
+		} finally {
+			listFile.delete();
+		}
+	}
+
+	/**
+	 * Encode the given ranges of the input, joined together, into the output file.
+	 *
+	 * @param input the file name or URL of the input
+	 * @param ranges the ranges of the input to be kept; all must be finite
+	 * @param keyFrames the times of the key frames of the input (in order)
+	 * @param metadata the metadata to be included in the output
+	 * @param output the output file
+	 * @throws IOException
+	 */
+	public void encode(String input, List<Range> ranges, double[] keyFrames, Map<String, String> metadata,
+			File output) throws IOException {
+		List<Range> chunks = split(ranges, keyFrames, chunkSeconds);
+		File folder = output.getAbsoluteFile().getParentFile();
+		List<File> pieces = new ArrayList<>();
+		File audio = File.createTempFile("audio-", ".m4a", folder);
+		int threads = Math.max(1, cores / workers);
+		// one more thread for the audio, which needs little of the cores
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, Math.max(1, chunks.size())) + 1);
+
+		try {
+			List<Future<?>> results = new ArrayList<>();
+
+			results.add(executor.submit(() -> {
+				encodeAudio(input, ranges, audio);
+				return null;
+			}));
+
+			for (Range chunk : chunks) {
+				File piece = File.createTempFile("chunk-", ".mp4", folder);
+
+				pieces.add(piece);
+				results.add(executor.submit(() -> {
+					encodeChunk(input, chunk, threads, piece);
+					return null;
+				}));
+			}
+
+			for (Future<?> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+
+					throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+
+			concat(pieces, audio, metadata, output);
+		} finally {
+			executor.shutdownNow();
+			pieces.forEach(File::delete);
+			audio.delete();
+		}
+	}
+
+	/**
+	 * Encode the given ranges of the audio of the input, joined together,
+	 * in a single pass.
+	 */
+	private void encodeAudio(String input, List<Range> ranges, File audio) throws IOException {
+		List<String> command = newCommand();
+
+		command.add("-rw_timeout");
+		command.add(Long.toString(Connections.getReadTimeout() * 1000L));
+
+		command.add("-i");
+		command.add(input);
+
+		command.add("-filter_complex");
+		command.add(audioFilter(ranges));
+
+		command.add("-map");
+		command.add("[a]");
+
+		command.addAll(AudioOptions);
+
+		command.add("-threads");
+		command.add("1");
+
+		command.add("-f");
+		command.add("mp4");
+
+		command.add(audio.getAbsolutePath());
+
+		execute(command);
+	}
+
+	/**
+	 * Encode the video (only) of the given chunk of the input.
+	 */
+	private void encodeChunk(String input, Range chunk, int threads, File piece) throws IOException {
+		List<String> command = newCommand();
+
+		command.add("-ss");
+		command.add(EditList.format(chunk.start));
+
+		// give up on a stalled connection rather than waiting forever
+		command.add("-rw_timeout");
+		command.add(Long.toString(Connections.getReadTimeout() * 1000L));
+
+		command.add("-i");
+		command.add(input);
+
+		command.add("-t");
+		command.add(EditList.format(chunk.getDuration()));
+
+		command.add("-map");
+		command.add("0:v:0");
+
+		command.addAll(codecOptions);
+
+		command.add("-avoid_negative_ts");
+		command.add("make_zero");
+
+		command.add("-threads");
+		command.add(Integer.toString(threads));
+
+		command.add("-f");
+		command.add("mp4");
+
+		command.add(piece.getAbsolutePath());
+
+		execute(command);
+	}
+
+	private List<String> newCommand() {
+		List<String> command = new ArrayList<>();
+
+		command.add("nice");
+
+		command.add(ffmpeg);
+
+		command.add("-y");
+
+		command.add("-nostdin");
+
+		command.add("-loglevel");
+		command.add("error");
+
+		command.add("-nostats");
+
+		return command;
+	}
+
+}
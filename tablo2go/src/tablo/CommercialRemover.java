@@ -2,13 +2,24 @@ package tablo;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import tablo.EditList.Range;
+
 /**
  * A utility to trim segments (e.g. commercials) from a video with ffmpeg.
  *
@@ -17,55 +28,317 @@ import java.util.regex.Pattern;
 public final class CommercialRemover {
 
 	/**
-	 * The H.264 'constant rate factor'.
+	 * The target length, in seconds, of chunks encoded concurrently
+	 * (zero disables chunked encoding).
 	 */
-	private static String crf = "25";
+	private static double chunkSize = 0.0;
 
 	/**
-	 * The extension of 'edit list' files.
+	 * The number of chunks to encode concurrently (zero selects a value
+	 * based on the number of available processors).
 	 */
-	private static final String EDL_EXTENSION = ".edl";
+	private static int chunkWorkers = 0;
 
 	/**
-	 * A pattern to extract the relevant information from edit list files.
+	 * The H.264 'constant rate factor'.
 	 */
-	private static final Pattern EDL_LINE_PATTERN = Pattern.compile(
-			"\\s*(\\d+\\.\\d+)\\s+(\\d+\\.\\d+)\\s+0\\s*", Pattern.CASE_INSENSITIVE);
+	private static String crf = "25";
 
 	/**
 	 * How to locate ffmpeg.
 	 */
 	private static String ffmpeg = "ffmpeg";
 
+	/**
+	 * How to locate ffprobe; by default, it is assumed to be beside ffmpeg.
+	 */
+	private static String ffprobe = null;
+
+	/**
+	 * The number of videos to process concurrently: a number, or 'auto'.
+	 */
+	private static String jobs = "1";
+
+	/**
+	 * Re-encode only the partial GOPs adjacent to each cut, copying the rest.
+	 */
+	private static boolean smart = false;
+
+	/**
+	 * The number of threads each ffmpeg process may use (zero lets ffmpeg decide).
+	 */
+	private static int threads = 0;
+
+	/**
+	 * How far, in seconds, inside a run of complete GOPs to place the ends
+	 * of its copied piece. When copying, ffmpeg starts at the key frame at
+	 * or before the seek point, so seeking to a key frame's rounded
+	 * pts_time could land just before it and pick up the previous GOP.
+	 * This is well under the duration of a frame.
+	 */
+	private static final double SeekMargin = 0.005;
+
 	/**
 	 * A pattern to detect and decompose video filenames.
 	 */
 	private static final Pattern VIDEO = Pattern.compile("(.*)(\\.avi|\\.mkv|\\.mp4)", Pattern.CASE_INSENSITIVE);
 
+	/**
+	 * Append the output options common to all uses and the output file.
+	 */
+	private static void addOutput(List<String> command, File outFile) {
+		if (threads > 0) {
+			command.add("-threads");
+			command.add(Integer.toString(threads));
+		}
+
+		command.add(outFile.getAbsolutePath());
+	}
+
+	/**
+	 * Create a temporary file to hold the next piece of a video. Pieces are
+	 * written as MPEG-TS so each carries its own SPS/PPS in-band.
+	 */
+	private static File addPiece(List<File> pieces, File folder) throws IOException {
+		File piece = File.createTempFile("rmcom-", ".ts", folder);
+
+		pieces.add(piece);
+
+		return piece;
+	}
+
 	/**
 	 * Append a 'pad' to the given buffer. In a complex filter, pads name the
 	 * inputs and outputs of individual filters which are to be connected together.
 	 * The name of the pad to be writtern here is 'prefix + index'.
 	 */
-	private static void appendPad(StringBuilder buffer, char prefix, int index) {
+	static void appendPad(StringBuilder buffer, char prefix, int index) {
 		buffer.append('[').append(prefix).append(index).append(']');
 	}
 
+	/**
+	 * Encode the ranges outside the given edit list in chunks, concurrently.
+	 */
+	private static void chunkEncode(String fileName, EditList edits, File outFile) throws IOException {
+		double duration = probeDuration(fileName);
+		double[] keyFrames = probeKeyFrames(fileName);
+		List<Range> ranges = new ArrayList<>();
+
+		for (Range range : edits.getKeptRanges()) {
+			double end = Math.min(range.end, duration);
+
+			if (range.start < end) {
+				ranges.add(new Range(range.start, end));
+			}
+		}
+
+		// with -jobs, each video has its share of the cores
+		int cores = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		int workers = chunkWorkers;
+
+		if (workers <= 0) {
+			workers = Math.max(2, cores / 4);
+		}
+
+		List<String> codecOptions = Arrays.asList( // <br/>
+				"-codec:v", "h264", // <br/>
+				"-crf", crf);
+
+		new ChunkedEncoder(ffmpeg, codecOptions, chunkSize, workers, cores) // <br/>
+				.encode(fileName, ranges, keyFrames, Collections.emptyMap(), outFile);
+	}
+
+	/**
+	 * Join the given pieces, without re-encoding, using the concat demuxer.
+	 * Re-encoded pieces have different parameter sets than copied ones; as
+	 * the pieces are MPEG-TS, those are kept in-band at each join (the MP4
+	 * describes only the first). All pieces share the 90kHz time base of
+	 * MPEG-TS, which the output keeps.
+	 */
+	private static void concat(List<File> pieces, File outFile) throws IOException {
+		File listFile = File.createTempFile("rmcom-", ".txt", outFile.getAbsoluteFile().getParentFile());
+
+		try {
+			ChunkedEncoder.writeConcatList(pieces, listFile);
+
+			List<String> command = newCommand();
+
+			command.add("-f");
+			command.add("concat");
+
+			command.add("-safe");
+			command.add("0");
+
+			command.add("-i");
+			command.add(listFile.getAbsolutePath());
+
+			command.add("-codec");
+			command.add("copy");
+
+			command.add("-bsf:a");
+			command.add("aac_adtstoasc");
+
+			command.add("-video_track_timescale");
+			command.add("90000");
+
+			command.add("-movflags");
+			command.add("+faststart");
+
+			addOutput(command, outFile);
+
+			ChunkedEncoder.execute(command);
+		} finally {
+			listFile.delete();
+		}
+	}
+
+	/**
+	 * Encode the given range of the input.
+	 */
+	private static void encodeRange(String fileName, double start, double end, List<String> videoOptions,
+			File piece) throws IOException {
+		List<String> command = newCommand();
+
+		command.add("-ss");
+		command.add(EditList.format(start));
+
+		command.add("-i");
+		command.add(fileName);
+
+		command.add("-t");
+		command.add(EditList.format(end - start));
+
+		command.add("-map");
+		command.add("0:v:0");
+
+		command.add("-map");
+		command.add("0:a:0");
+
+		if (videoOptions == null) {
+			command.add("-codec:v");
+			command.add("copy");
+		} else {
+			command.add("-codec:v");
+			command.add("h264");
+
+			command.add("-crf");
+			command.add(crf);
+
+			command.addAll(videoOptions);
+		}
+
+		// audio is always re-encoded so it remains sample-accurate at each cut
+		command.add("-codec:a");
+		command.add("aac");
+
+		command.add("-b:a");
+		command.add("160k");
+
+		command.add("-avoid_negative_ts");
+		command.add("make_zero");
+
+		command.add("-f");
+		command.add("mpegts");
+
+		addOutput(command, piece);
+
+		ChunkedEncoder.execute(command);
+	}
+
+	private static synchronized String getFFprobe() {
+		if (ffprobe == null) {
+			File ffmpegFile = new File(ffmpeg);
+			String name = ffmpegFile.getName().replaceFirst("(?i)ffmpeg", "ffprobe");
+
+			ffprobe = new File(ffmpegFile.getParentFile(), name).getPath();
+		}
+
+		return ffprobe;
+	}
+
+	/**
+	 * Answer the number of videos to process concurrently. In 'auto' mode,
+	 * each ffmpeg process is given about 4 cores: x264 makes good use of
+	 * that many, but scales less well beyond.
+	 */
+	private static int getJobCount(int fileCount, int cores) {
+		int count;
+
+		if ("auto".equalsIgnoreCase(jobs)) {
+			count = Math.max(1, cores / 4);
+		} else {
+			try {
+				count = Math.max(1, Integer.parseInt(jobs));
+			} catch (NumberFormatException e) {
+				printError("Bad job count", jobs);
+				count = 1;
+			}
+		}
+
+		return Math.min(count, Math.max(1, fileCount));
+	}
+
 	public static void main(String[] args) {
+		List<String> fileNames = new ArrayList<>();
+
 		for (String arg : args) {
-			try {
-				if (arg.startsWith("-crf=")) {
-					crf = arg.substring(5);
-				} else if (arg.startsWith("-fmpeg=")) {
-					ffmpeg = arg.substring(7);
-				} else {
-					process(arg);
-				}
-			} catch (IOException e) {
-				printError("Error processing", arg);
-				e.printStackTrace();
+			if (arg.startsWith("-chunkSize=")) {
+				chunkSize = Double.parseDouble(arg.substring(11));
+			} else if (arg.startsWith("-chunkWorkers=")) {
+				chunkWorkers = Integer.parseInt(arg.substring(14));
+			} else if (arg.startsWith("-crf=")) {
+				crf = arg.substring(5);
+			} else if (arg.startsWith("-fmpeg=")) {
+				ffmpeg = arg.substring(7);
+			} else if (arg.startsWith("-ffprobe=")) {
+				ffprobe = arg.substring(9);
+			} else if (arg.startsWith("-jobs=")) {
+				jobs = arg.substring(6);
+			} else if (arg.equals("-smart")) {
+				smart = true;
+			} else {
+				fileNames.add(arg);
 			}
 		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		int jobCount = getJobCount(fileNames.size(), cores);
+
+		if (jobCount > 1) {
+			// share the cores between the concurrent ffmpeg processes
+			threads = Math.max(1, cores / jobCount);
+		}
+
+		AtomicInteger fileCount = new AtomicInteger();
+		AtomicLong byteCount = new AtomicLong();
+		long startTime = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(jobCount);
+
+		for (String fileName : fileNames) {
+			executor.execute(() -> {
+				try {
+					if (process(fileName)) {
+						fileCount.incrementAndGet();
+						byteCount.addAndGet(new File(fileName).length());
+					}
+				} catch (IOException e) {
+					printError("Error processing", fileName);
+					e.printStackTrace();
+				}
+			});
+		}
+
+		executor.shutdown();
+
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (fileNames.size() > 1) {
+			printThroughput(fileCount.get(), byteCount.get(), System.nanoTime() - startTime, jobCount);
+		}
 	}
 
 	/**
@@ -96,7 +369,7 @@ public final class CommercialRemover {
 	 *
 	 *	 [v0][a0][v1][a1][v2][a2][v3][a3][v4][a4][v5][a5] concat=n=6:v=1:a=1 [v] [a]
 	 */
-	private static String makeFilter(List<String> trimList) {
+	static String makeFilter(List<Range> trimList) {
 		final char videoIn = 's';
 		final char audioIn = 't';
 		final char videoOut = 'v';
@@ -144,67 +417,223 @@ public final class CommercialRemover {
 		return filter.toString();
 	}
 
+	/**
+	 * Answer the initial part of an ffmpeg command common to all uses.
+	 */
+	private static List<String> newCommand() {
+		List<String> command = new ArrayList<>();
+
+		command.add("nice");
+
+		command.add(ffmpeg);
+
+		command.add("-y");
+
+		command.add("-accurate_seek");
+
+		command.add("-nostdin");
+
+		command.add("-loglevel");
+		command.add("error");
+
+		command.add("-nostats");
+
+		return command;
+	}
+
 	private static void printError(String label, String argument) {
 		System.err.printf("%s: %s%n", label, argument);
 	}
 
+	private static void printThroughput(int fileCount, long byteCount, long nanos, int jobCount) {
+		double seconds = Math.max(nanos / 1e9, 1e-3);
+
+		System.out.printf("Processed %d file%s (%,.1f MB) in %,.1f s with %d job%s: %,.2f MB/s, %,.1f files/hour%n", // <br/>
+				Integer.valueOf(fileCount), fileCount == 1 ? "" : "s", // <br/>
+				Double.valueOf(byteCount / 1e6), Double.valueOf(seconds), // <br/>
+				Integer.valueOf(jobCount), jobCount == 1 ? "" : "s", // <br/>
+				Double.valueOf(byteCount / 1e6 / seconds), // <br/>
+				Double.valueOf(fileCount * 3600 / seconds));
+	}
+
+	/**
+	 * Run ffprobe with the given arguments, answering the lines it writes.
+	 */
+	private static List<String> probe(String fileName, String... arguments) throws IOException {
+		List<String> command = new ArrayList<>();
+
+		command.add(getFFprobe());
+
+		command.add("-loglevel");
+		command.add("error");
+
+		command.addAll(Arrays.asList(arguments));
+
+		command.add("-of");
+		command.add("csv=p=0");
+
+		command.add(fileName);
+
+		Process process = new ProcessBuilder(command) // <br/>
+				.redirectError(ProcessBuilder.Redirect.INHERIT) // <br/>
+				.start();
+		List<String> lines = new ArrayList<>();
+
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+
+			process.getOutputStream().close();
+
+			while ((line = reader.readLine()) != null) {
+				if (!(line = line.trim()).isEmpty()) {
+					lines.add(line);
+				}
+			}
+		}
+
+		try {
+			if (process.waitFor() != 0) {
+				throw new IOException("ffprobe failed for " + fileName);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+
+		return lines;
+	}
+
+	static double probeDuration(String fileName) throws IOException {
+		List<String> lines = probe(fileName, "-show_entries", "format=duration");
+
+		try {
+			return Double.parseDouble(lines.get(0));
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			throw new IOException("Cannot determine duration of " + fileName);
+		}
+	}
+
+	/**
+	 * Answer the presentation times of the key frames of the first video stream.
+	 */
+	static double[] probeKeyFrames(String fileName) throws IOException {
+		List<String> lines = probe(fileName, // <br/>
+				"-select_streams", "v:0", // <br/>
+				"-skip_frame", "nokey", // <br/>
+				"-show_entries", "frame=pts_time");
+
+		return lines.stream() // <br/>
+				.map(line -> line.replace(",", "")) // <br/>
+				.filter(line -> !line.equals("N/A")) // <br/>
+				.mapToDouble(Double::parseDouble) // <br/>
+				.sorted() // <br/>
+				.toArray();
+	}
+
+	/**
+	 * Answer the encoder options needed for re-encoded pieces to be compatible
+	 * with the existing video stream (so they can be joined without re-encoding).
+	 */
+	private static List<String> probeVideoOptions(String fileName) throws IOException {
+		List<String> lines = probe(fileName, // <br/>
+				"-select_streams", "v:0", // <br/>
+				"-show_entries", "stream=profile,level,pix_fmt");
+		List<String> options = new ArrayList<>();
+
+		if (!lines.isEmpty()) {
+			// e.g. "High,40,yuv420p"
+			String[] fields = lines.get(0).split(",");
+
+			if (fields.length >= 3) {
+				String profile = fields[0].toLowerCase(Locale.ROOT).replace("constrained ", "");
+
+				if (profile.matches("baseline|main|high")) {
+					options.add("-profile:v");
+					options.add(profile);
+				}
+
+				if (fields[1].matches("\\d+")) {
+					int level = Integer.parseInt(fields[1]);
+
+					options.add("-level");
+					options.add(level / 10 + "." + level % 10);
+				}
+
+				if (!fields[2].isEmpty()) {
+					options.add("-pix_fmt");
+					options.add(fields[2]);
+				}
+			}
+		}
+
+		return options;
+	}
+
 	/**
 	 * Process the video in the given fileName.
 	 *
 	 * @param fileName
+	 * @return whether the video was processed
 	 * @throws IOException
 	 */
-	private static void process(String fileName) throws IOException {
+	private static boolean process(String fileName) throws IOException {
 		Matcher matcher = VIDEO.matcher(fileName);
 
 		if (!matcher.matches()) {
 			printError("Unsupported file type", fileName);
-			return;
+			return false;
 		}
 
 		File videoFile = new File(fileName);
 
 		if (!videoFile.exists()) {
 			printError("File not found", fileName);
-			return;
+			return false;
 		}
 
 		String baseName = matcher.group(1);
-		File edlFile = new File(baseName + EDL_EXTENSION);
+		File edlFile = new File(baseName + EditList.EXTENSION);
 
 		if (!edlFile.exists()) {
 			printError("File not found", edlFile.getAbsolutePath());
-			return;
+			return false;
 		}
 
 		File outFile = new File(baseName + "-nc.mp4");
 
 		if (outFile.exists()) {
 			printError("Output already exists", outFile.getAbsolutePath());
-			return;
+			return false;
 		}
 
-		// ffmpeg ... -i in.mp4 -filter_complex "%filter%" -map "[v]" -map "[a]" {codecs} out.mp4
-		List<String> command = new ArrayList<>();
-
-		command.add("nice");
-
-		command.add(ffmpeg);
+		System.out.println("Processing: " + fileName);
 
-		command.add("-accurate_seek");
+		EditList edits = EditList.read(edlFile);
 
-		command.add("-nostdin");
+		if (smart) {
+			smartCut(fileName, edits, outFile);
+		} else if (chunkSize > 0) {
+			chunkEncode(fileName, edits, outFile);
+		} else {
+			reencode(fileName, edits, outFile);
+		}
 
-		command.add("-loglevel");
-		command.add("error");
+		return true;
+	}
 
-		command.add("-nostats");
+	/**
+	 * Decode and re-encode the whole video, keeping only the ranges
+	 * outside the given edit list.
+	 */
+	private static void reencode(String fileName, EditList edits, File outFile) throws IOException {
+		// ffmpeg ... -i in.mp4 -filter_complex "%filter%" -map "[v]" -map "[a]" {codecs} out.mp4
+		List<String> command = newCommand();
 
 		command.add("-i");
 		command.add(fileName);
 
 		command.add("-filter_complex");
-		command.add(makeFilter(readEditList(edlFile)));
+		command.add(makeFilter(edits.getKeptRanges()));
 
 		command.add("-map");
 		command.add("[v]");
@@ -226,63 +655,78 @@ public final class CommercialRemover {
 
 		command.add("-shortest");
 
-		command.add(outFile.getAbsolutePath());
-
-		System.out.println("Processing: " + fileName);
-
-		Process process = new ProcessBuilder(command) // <br/>
-				.redirectError(ProcessBuilder.Redirect.INHERIT) // <br/>
-				.redirectOutput(ProcessBuilder.Redirect.INHERIT) // <br/>
-				.start();
+		addOutput(command, outFile);
 
-		try {
-			process.getOutputStream().close();
-			process.waitFor();
-		} catch (InterruptedException e) {
-			throw new IOException(e);
-		}
+		ChunkedEncoder.execute(command);
 	}
 
 	/**
-	 * Given an edit list file containing:
-	 *	0.00	49.92	0
-	 *	814.15	1043.14	0
-	 *	1664.36	1922.89	0
-	 *	2405.00	2697.63	0
-	 *	3002.97	3276.74	0
-	 *	3532.00	3825.12	0
-	 *
-	 * produce a 'trim list' containing:
-	 *     49.92:814.15
-	 *   1043.14:1664.36
-	 *   1922.89:2405.00
-	 *   2697.63:3002.97
-	 *   3276.74:3532.00
-	 *   3825.12
+	 * Remove the ranges of the given edit list re-encoding only the partial
+	 * GOPs at either end of each kept range; the GOPs that lie entirely
+	 * within a kept range are copied. For example, given key frames every
+	 * 2 seconds, the kept range 49.92:814.15 becomes three pieces:
+	 *   49.92:50.00   (re-encoded)
+	 *   50.00:814.00  (copied)
+	 *   814.00:814.15 (re-encoded)
+	 * The pieces of all kept ranges are then joined with the concat demuxer
+	 * (see concat).
 	 */
-	private static List<String> readEditList(File edlFile) throws IOException {
-		try (BufferedReader r = new BufferedReader(new FileReader(edlFile))) {
-			List<String> trimList = new ArrayList<>();
-			String lastStop = "0.00";
-			String line;
+	private static void smartCut(String fileName, EditList edits, File outFile) throws IOException {
+		double duration = probeDuration(fileName);
+		double[] keyFrames = probeKeyFrames(fileName);
+		List<String> videoOptions = probeVideoOptions(fileName);
+		File folder = outFile.getAbsoluteFile().getParentFile();
+		List<File> pieces = new ArrayList<>();
+
+		try {
+			for (Range range : edits.getKeptRanges()) {
+				double start = range.start;
+				double end = Math.min(range.end, duration);
 
-			while ((line = r.readLine()) != null) {
-				Matcher matcher = EDL_LINE_PATTERN.matcher(line);
+				if (start >= end) {
+					continue;
+				}
+
+				double copyStart = Double.NaN;
+				double copyEnd = Double.NaN;
 
-				if (matcher.matches()) {
-					String start = matcher.group(1);
+				for (double keyFrame : keyFrames) {
+					if (keyFrame > end) {
+						break;
+					} else if (keyFrame >= start) {
+						if (Double.isNaN(copyStart)) {
+							copyStart = keyFrame;
+						}
 
-					if (!start.equals(lastStop)) {
-						trimList.add(lastStop + ":" + start);
+						copyEnd = keyFrame;
 					}
+				}
 
-					lastStop = matcher.group(2);
+				// the last key frame of the input is a valid end of a copied piece
+				if (end == duration && !Double.isNaN(copyStart)) {
+					copyEnd = end;
 				}
-			}
 
-			trimList.add(lastStop);
+				if (Double.isNaN(copyStart) || copyStart >= copyEnd) {
+					// no complete GOP in this range
+					encodeRange(fileName, start, end, videoOptions, addPiece(pieces, folder));
+					continue;
+				}
+
+				if (start < copyStart) {
+					encodeRange(fileName, start, copyStart, videoOptions, addPiece(pieces, folder));
+				}
+
+				encodeRange(fileName, copyStart + SeekMargin, copyEnd - SeekMargin, null, addPiece(pieces, folder));
+
+				if (copyEnd < end) {
+					encodeRange(fileName, copyEnd, end, videoOptions, addPiece(pieces, folder));
+				}
+			}
 
-			return trimList;
+			concat(pieces, outFile);
+		} finally {
+			pieces.forEach(File::delete);
 		}
 	}
 
@@ -0,0 +1,78 @@
+package tablo;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects one copy of each episode or movie which has been recorded more
+ * than once (typically on different Tablos with overlapping rules), so it
+ * is only downloaded once.
+ */
+public final class DuplicateFilter {
+
+	/**
+	 * Orders copies of the same content, best first: finished recordings,
+	 * then those marked clean, then larger recordings, then those on the
+	 * more responsive Tablo.
+	 */
+	private static Comparator<Job> bestFirst(Map<String, Long> latencies) {
+		Comparator<Job> finished = Comparator.comparing(job -> !job.getAiring().isFinished());
+		Comparator<Job> clean = Comparator.comparing(job -> !job.getAiring().isClean());
+		Comparator<Job> larger = Comparator.comparingLong(job -> -job.getAiring().getSize());
+		Comparator<Job> faster = Comparator.comparingLong( // <br/>
+				job -> latencies.getOrDefault(job.getTablo(), Long.valueOf(Long.MAX_VALUE)).longValue());
+
+		return finished.thenComparing(clean).thenComparing(larger).thenComparing(faster) // <br/>
+				.thenComparing(Schedule.RULE);
+	}
+
+	/**
+	 * Answer the given jobs, keeping only the best copy of each content;
+	 * the copies on other Tablos become its alternates. Copies on the same
+	 * Tablo as the best are separate recordings, so they are kept, as are
+	 * all jobs whose content cannot be identified.
+	 *
+	 * @param jobs the candidate jobs
+	 * @param latencies the time, in milliseconds, each Tablo took to respond
+	 */
+	public static List<Job> select(List<Job> jobs, Map<String, Long> latencies) {
+		Map<String, List<Job>> groups = new LinkedHashMap<>();
+		List<Job> selected = new ArrayList<>(jobs.size());
+		Comparator<Job> order = bestFirst(latencies);
+
+		for (Job job : jobs) {
+			String key = job.getAiring().getContentKey();
+
+			if (key == null) {
+				selected.add(job);
+			} else {
+				groups.computeIfAbsent(key, k -> new ArrayList<>()).add(job);
+			}
+		}
+
+		for (List<Job> group : groups.values()) {
+			group.sort(order);
+
+			Job best = group.get(0);
+
+			selected.add(best);
+
+			for (Job duplicate : group.subList(1, group.size())) {
+				if (duplicate.getTablo().equals(best.getTablo())) {
+					selected.add(duplicate);
+					continue;
+				}
+
+				best.addAlternate(duplicate);
+				System.out.printf("Skipping duplicate %s on %s; saving %s from %s%n", // <br/>
+						duplicate.getPath(), duplicate.getTablo(), best.getPath(), best.getTablo());
+			}
+		}
+
+		return selected;
+	}
+
+}
@@ -0,0 +1,149 @@
+package tablo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The segments (e.g. commercials) to be removed from a video, as described
+ * by an 'edit list' (.edl) file.
+ */
+public final class EditList {
+
+	/**
+	 * A span of time, in seconds. An open-ended range has an infinite end.
+	 */
+	public static final class Range {
+
+		public final double end;
+
+		public final double start;
+
+		public Range(double start, double end) {
+			super();
+			this.end = end;
+			this.start = start;
+		}
+
+		public double getDuration() {
+			return end - start;
+		}
+
+		public boolean isOpen() {
+			return Double.isInfinite(end);
+		}
+
+		@Override
+		public String toString() {
+			return isOpen() ? format(start) : format(start) + ":" + format(end);
+		}
+
+	}
+
+	/**
+	 * The extension of 'edit list' files.
+	 */
+	public static final String EXTENSION = ".edl";
+
+	/**
+	 * A pattern to extract the relevant information from edit list files.
+	 */
+	private static final Pattern LINE_PATTERN = Pattern.compile( // <br/>
+			"\\s*(\\d+\\.\\d+)\\s+(\\d+\\.\\d+)\\s+0\\s*", Pattern.CASE_INSENSITIVE);
+
+	static String format(double seconds) {
+		return BigDecimal.valueOf(seconds).toPlainString();
+	}
+
+	/**
+	 * Read an edit list file containing lines like:
+	 *	0.00	49.92	0
+	 *	814.15	1043.14	0
+	 */
+	public static EditList read(File edlFile) throws IOException {
+		try (BufferedReader r = new BufferedReader(new FileReader(edlFile))) {
+			List<Range> cuts = new ArrayList<>();
+			String line;
+
+			while ((line = r.readLine()) != null) {
+				Matcher matcher = LINE_PATTERN.matcher(line);
+
+				if (matcher.matches()) {
+					double start = Double.parseDouble(matcher.group(1));
+					double end = Double.parseDouble(matcher.group(2));
+
+					cuts.add(new Range(start, end));
+				}
+			}
+
+			return new EditList(cuts);
+		}
+	}
+
+	private final List<Range> cuts;
+
+	public EditList(List<Range> cuts) {
+		super();
+		this.cuts = Collections.unmodifiableList(new ArrayList<>(cuts));
+	}
+
+	public List<Range> getCuts() {
+		return cuts;
+	}
+
+	/**
+	 * Given the cuts:
+	 *	0.00	49.92
+	 *	814.15	1043.14
+	 *	...
+	 *	3532.00	3825.12
+	 *
+	 * answer the complementary ranges to be kept:
+	 *	49.92:814.15
+	 *	1043.14:1664.36
+	 *	...
+	 *	3825.12
+	 */
+	public List<Range> getKeptRanges() {
+		List<Range> kept = new ArrayList<>();
+		double lastStop = 0.0;
+
+		for (Range cut : cuts) {
+			if (cut.start > lastStop) {
+				kept.add(new Range(lastStop, cut.start));
+			}
+
+			lastStop = Math.max(lastStop, cut.end);
+		}
+
+		kept.add(new Range(lastStop, Double.POSITIVE_INFINITY));
+
+		return kept;
+	}
+
+	public boolean isEmpty() {
+		return cuts.isEmpty();
+	}
+
+	/**
+	 * Write this edit list in the form accepted by read().
+	 */
+	public void write(File edlFile) throws IOException {
+		try (PrintWriter out = new PrintWriter(edlFile, StandardCharsets.UTF_8)) {
+			for (Range cut : cuts) {
+				out.printf(Locale.ROOT, "%.2f\t%.2f\t0%n", Double.valueOf(cut.start), Double.valueOf(cut.end));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,208 @@
+package tablo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+import tablo.TranscodeGovernor.Mode;
+import tablo.TranscodeGovernor.Monitor;
+import tablo.TranscodeGovernor.Task;
+
+/**
+ * The work to be done for one airing: saving it according to the first
+ * matching recording rule, or listing it.
+ */
+public final class Job implements Task {
+
+	private final BiConsumer<Job, Monitor> action;
+
+	private final Airing airing;
+
+	/**
+	 * Other copies of the same recording, possibly on other Tablos.
+	 */
+	private final List<Job> alternates;
+
+	private final MediaHandler handler;
+
+	private final int index;
+
+	private final Mode mode;
+
+	private final String path;
+
+	/**
+	 * The playlist being requested ahead of time, if any.
+	 */
+	private CompletableFuture<URL> playlist;
+
+	/**
+	 * The recording rule under which the airing is handled.
+	 */
+	private final Recording recording;
+
+	/**
+	 * Whether the playlist has been requested, so no further streaming
+	 * sessions are started.
+	 */
+	private boolean requested;
+
+	/**
+	 * Whether the job streams the video, and so needs a playlist.
+	 */
+	private final boolean streams;
+
+	private final String tablo;
+
+	/**
+	 * @param index the index of the recording rule that selected the airing
+	 * @param tablo the address of the Tablo holding the airing
+	 * @param path the path of the airing on the Tablo
+	 * @param handler the handler of the airing
+	 * @param recording the recording rule under which the airing is handled
+	 * @param mode whether the job copies or encodes video
+	 * @param streams whether the job streams the video
+	 * @param action the work to be done
+	 */
+	Job(int index, String tablo, String path, MediaHandler handler, Recording recording, Mode mode,
+			boolean streams, BiConsumer<Job, Monitor> action) {
+		super();
+		this.action = action;
+		this.airing = handler.getAiring();
+		this.alternates = new ArrayList<>();
+		this.handler = handler;
+		this.index = index;
+		this.mode = mode;
+		this.path = path;
+		this.playlist = null;
+		this.recording = recording;
+		this.requested = false;
+		this.streams = streams;
+		this.tablo = tablo;
+	}
+
+	/**
+	 * Note that the given job would save another copy of the same recording.
+	 */
+	public void addAlternate(Job alternate) {
+		alternates.add(alternate);
+	}
+
+	/**
+	 * Answer a job for the same work on another copy of the airing,
+	 * at the given location.
+	 */
+	Job copyAt(String otherTablo, String otherPath) {
+		return new Job(index, otherTablo, otherPath, handler, recording, mode, streams, action);
+	}
+
+	public Airing getAiring() {
+		return airing;
+	}
+
+	/**
+	 * @return other copies of the same recording
+	 */
+	public List<Job> getAlternates() {
+		return Collections.unmodifiableList(alternates);
+	}
+
+	public MediaHandler getHandler() {
+		return handler;
+	}
+
+	/**
+	 * @return the index of the recording rule that selected the airing
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	@Override
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the path of the airing on the Tablo
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Answer the playlist of the airing, starting a streaming session on the
+	 * Tablo unless one was started ahead of time by prefetchPlaylist().
+	 * Each session is used only once.
+	 *
+	 * @return the playlist, or null if the Tablo didn't provide one
+	 */
+	public URL getPlaylist() throws IOException {
+		CompletableFuture<URL> pending;
+
+		synchronized (this) {
+			pending = playlist;
+			playlist = null;
+			requested = true;
+		}
+
+		if (pending == null) {
+			return Main.getPlaylistURL(tablo, path);
+		}
+
+		try {
+			return pending.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) cause).getCause();
+			}
+
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public Recording getRecording() {
+		return recording;
+	}
+
+	/**
+	 * @return the address of the Tablo holding the airing
+	 */
+	public String getTablo() {
+		return tablo;
+	}
+
+	/**
+	 * Start requesting the playlist in the background, so the session is
+	 * ready when the job starts.
+	 */
+	synchronized void prefetchPlaylist(Executor executor) {
+		if (streams && !requested) {
+			requested = true;
+			playlist = CompletableFuture.supplyAsync(() -> {
+				try {
+					return Main.getPlaylistURL(tablo, path);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, executor);
+		}
+	}
+
+	@Override
+	public void run(Monitor monitor) {
+		action.accept(this, monitor);
+	}
+
+}
@@ -0,0 +1,323 @@
+package tablo;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tablo.TranscodeGovernor.Mode;
+import tablo.TranscodeGovernor.Monitor;
+import tablo.TranscodeGovernor.Task;
+
+/**
+ * Orders jobs according to a schedule and, optionally, declines to start
+ * jobs which are not expected to finish before a deadline. The rate of
+ * progress is learned from the jobs that have finished; it is also used
+ * to start the streaming session of the next job shortly before the
+ * current one is expected to finish.
+ */
+public final class JobScheduler {
+
+	private final class ScheduledTask implements Task {
+
+		private final Job job;
+
+		/**
+		 * The job which follows in the schedule, or null (perhaps
+		 * until the job is found, if jobs are streamed).
+		 */
+		private Job next;
+
+		/**
+		 * Whether the job is running.
+		 */
+		private boolean running;
+
+		/**
+		 * When the job started, by System.nanoTime().
+		 */
+		private long startTime;
+
+		ScheduledTask(Job job, Job next) {
+			super();
+			this.job = job;
+			this.next = next;
+			this.running = false;
+			this.startTime = 0;
+		}
+
+		/**
+		 * Note the job which follows this one, found since this task was
+		 * prepared. If this job is running, the playlist of the next is
+		 * requested as if it had been known when this job started.
+		 */
+		synchronized void follow(Job following) {
+			next = following;
+
+			if (running) {
+				prefetch(following, job.getAiring().getSize(), startTime);
+			}
+		}
+
+		@Override
+		public Mode getMode() {
+			return job.getMode();
+		}
+
+		@Override
+		public void run(Monitor monitor) {
+			long size = job.getAiring().getSize();
+
+			if (!canFinish(size)) {
+				System.out.println("Not starting " + job.getPath() + "; it is unlikely to finish before the deadline");
+				skipped.incrementAndGet();
+				return;
+			}
+
+			long start = System.nanoTime();
+			Job following;
+
+			synchronized (this) {
+				following = next;
+				running = true;
+				startTime = start;
+			}
+
+			prefetch(following, size, start);
+
+			try {
+				job.run(monitor);
+			} finally {
+				synchronized (this) {
+					running = false;
+				}
+			}
+
+			finished(size, System.nanoTime() - start);
+		}
+
+	}
+
+	/**
+	 * How long, in nanoseconds, before a job is expected to finish to
+	 * request the playlist of the next job.
+	 */
+	private static final long PrefetchLead = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * Parse a time budget, given either in minutes or as an ISO-8601 duration.
+	 * Answer null if the text is null or empty.
+	 *
+	 * @throws IllegalArgumentException if the text is not a valid duration
+	 */
+	public static Duration parseBudget(String text) {
+		if (text == null || (text = text.trim()).isEmpty()) {
+			return null;
+		}
+
+		try {
+			if (text.toUpperCase(Locale.ROOT).startsWith("P")) {
+				return Duration.parse(text);
+			}
+
+			return Duration.ofSeconds(Math.round(Double.parseDouble(text) * 60));
+		} catch (DateTimeParseException | NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid deadline: " + text, e);
+		}
+	}
+
+	/**
+	 * The time, by System.nanoTime(), after which no jobs are started,
+	 * if there is a deadline.
+	 */
+	private final long deadline;
+
+	private final boolean hasDeadline;
+
+	private final ScheduledExecutorService prefetcher;
+
+	private final Schedule schedule;
+
+	private final AtomicInteger skipped;
+
+	private final long start;
+
+	private int started;
+
+	/**
+	 * The total size of the airings of finished jobs whose size is known.
+	 */
+	private long totalBytes;
+
+	/**
+	 * The total time taken by the jobs included in totalBytes.
+	 */
+	private long totalNanos;
+
+	/**
+	 * @param schedule the order in which to start jobs
+	 * @param budget the time allowed from now to start jobs, or null if unlimited
+	 */
+	public JobScheduler(Schedule schedule, Duration budget) {
+		super();
+		this.start = System.nanoTime();
+		this.deadline = budget != null ? start + budget.toNanos() : 0;
+		this.hasDeadline = budget != null;
+		this.prefetcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "prefetch");
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+		this.schedule = schedule;
+		this.skipped = new AtomicInteger();
+		this.started = 0;
+		this.totalBytes = 0;
+		this.totalNanos = 0;
+	}
+
+	/**
+	 * Answer whether a job for an airing of the given size (or UNKNOWN) is
+	 * expected to finish before the deadline. Until a job of known size has
+	 * finished, this only requires that the deadline has not passed.
+	 */
+	private synchronized boolean canFinish(long size) {
+		if (hasDeadline) {
+			long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0) {
+				return false;
+			}
+
+			long estimate = estimate(size);
+
+			if (estimate >= 0 && estimate > remaining) {
+				return false;
+			}
+		}
+
+		started += 1;
+
+		return true;
+	}
+
+	/**
+	 * Answer the expected time, in nanoseconds, for a job for an airing of
+	 * the given size (or UNKNOWN), or -1 if that can't be estimated yet.
+	 */
+	private synchronized long estimate(long size) {
+		if (size != Airing.UNKNOWN && totalBytes > 0) {
+			return (long) ((double) size * totalNanos / totalBytes);
+		}
+
+		return -1;
+	}
+
+	private synchronized void finished(long size, long nanos) {
+		if (size != Airing.UNKNOWN && size > 0) {
+			totalBytes += size;
+			totalNanos += nanos;
+		}
+	}
+
+	/**
+	 * Answer the given jobs in the order of the schedule.
+	 */
+	public List<Job> order(List<Job> jobs) {
+		List<Job> ordered = new ArrayList<>(jobs);
+
+		ordered.sort(schedule);
+
+		return ordered;
+	}
+
+	/**
+	 * Answer tasks for the given jobs, in the order of the schedule.
+	 */
+	public List<Task> prepare(List<Job> jobs) {
+		List<Job> ordered = order(jobs);
+		List<Task> tasks = new ArrayList<>(ordered.size());
+
+		for (int i = 0, count = ordered.size(); i < count; ++i) {
+			tasks.add(new ScheduledTask(ordered.get(i), i + 1 < count ? ordered.get(i + 1) : null));
+		}
+
+		return tasks;
+	}
+
+	/**
+	 * Answer tasks for the given jobs, in the order given, as they become
+	 * available. The playlist of a job is requested ahead of time if the job
+	 * is taken (see TranscodeGovernor.execute) before its predecessor ends.
+	 */
+	public Iterator<Task> prepare(Iterator<Job> jobs) {
+		return new Iterator<Task>() {
+
+			private ScheduledTask previous = null;
+
+			@Override
+			public boolean hasNext() {
+				return jobs.hasNext();
+			}
+
+			@Override
+			public Task next() {
+				ScheduledTask task = new ScheduledTask(jobs.next(), null);
+
+				if (previous != null) {
+					previous.follow(task.job);
+				}
+
+				previous = task;
+
+				return task;
+			}
+
+		};
+	}
+
+	/**
+	 * Arrange to request the playlist of the given job shortly before a job
+	 * of the given size, started at the given time (by System.nanoTime()),
+	 * is expected to finish. Until the rate of progress is known, the next
+	 * job requests its own playlist.
+	 */
+	private void prefetch(Job job, long size, long jobStart) {
+		long estimate = estimate(size);
+
+		if (job != null && estimate >= 0) {
+			long delay = jobStart + estimate - PrefetchLead - System.nanoTime();
+
+			prefetcher.schedule(() -> job.prefetchPlaylist(prefetcher), // <br/>
+					Math.max(0, delay), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	public synchronized void printSummary(PrintStream out) {
+		long seconds = Duration.ofNanos(System.nanoTime() - start).getSeconds();
+
+		out.println();
+		out.printf("Ran %d job%s in %d:%02d:%02d (schedule: %s", // <br/>
+				Integer.valueOf(started), started == 1 ? "" : "s", // <br/>
+				Long.valueOf(seconds / 3600), Long.valueOf(seconds / 60 % 60), Long.valueOf(seconds % 60), // <br/>
+				schedule);
+
+		if (hasDeadline) {
+			int count = skipped.get();
+
+			out.printf("; %d job%s not started before the deadline", // <br/>
+					Integer.valueOf(count), count == 1 ? "" : "s");
+		}
+
+		out.printf(")%n");
+	}
+
+}
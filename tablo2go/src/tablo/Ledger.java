@@ -0,0 +1,251 @@
+package tablo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Remembers the airings which have been saved, so later runs can pass over
+ * them without fetching metadata or evaluating the recording rules. An entry
+ * is only trusted while the saved file still has the recorded size and the
+ * rule which produced it is unchanged; entries of rules which overwrite
+ * existing files are never trusted.
+ */
+public final class Ledger {
+
+	//  <ledger>
+	//    <tablo ip="10.1.9.90">
+	//      <recording id="/recordings/series/episodes/298492"
+	//                 file="D:/video/The Detectives/105 Stranger Calling.mp4"
+	//                 size="1291988992" rule="5d0f6c1e2a9b3c47" />
+	//    </tablo>
+	//  </ledger>
+
+	private static final class Entry {
+
+		final String file;
+
+		final String rule;
+
+		final long size;
+
+		Entry(String file, long size, String rule) {
+			super();
+			this.file = file;
+			this.rule = rule;
+			this.size = size;
+		}
+
+	}
+
+	/**
+	 * Options which affect how a run proceeds rather than what it produces;
+	 * these are not part of the hash of a rule.
+	 */
+	private static final Set<String> RunOptions = new HashSet<>(Arrays.asList( // <br/>
+			"cache", "config", "connectTimeout", "deadline", "debug", "downloads", "events", "execute",
+			"keepDuplicates", "ledger", "list", "overwrite", "plan", "rateLimit", "readTimeout", "retries", "schedule",
+			"stream", "stripe", "tablos", "totalRateLimit"));
+
+	private static final String TagLedger = "ledger";
+	private static final String TagRecording = "recording";
+	private static final String TagTablo = "tablo";
+
+	private static Element newChildElement(Node parent, String name) {
+		Document document = parent instanceof Document ? (Document) parent : parent.getOwnerDocument();
+		Element child = document.createElement(name);
+
+		parent.appendChild(child);
+
+		return child;
+	}
+
+	/**
+	 * Answer a digest of the options of the given recording rule which
+	 * affect the files it produces.
+	 */
+	static String ruleHash(Recording recording) {
+		Map<String, String> options = new TreeMap<>(recording.getOptions());
+		StringBuilder text = new StringBuilder();
+
+		options.keySet().removeAll(RunOptions);
+		options.forEach((name, value) -> text.append(name).append('=').append(value).append('\n'));
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+
+			for (int i = 0; i < 8; ++i) {
+				hex.append(String.format("%02x", Integer.valueOf(digest[i] & 0xFF)));
+			}
+
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// ip -> (recording -> entry)
+	private final Map<String, Map<String, Entry>> content;
+
+	/**
+	 * The hashes of the current recording rules, except those which
+	 * overwrite existing files.
+	 */
+	private final Set<String> rules;
+
+	/**
+	 * @param recordings the current recording rules
+	 */
+	public Ledger(Collection<Recording> recordings) {
+		super();
+		this.content = new TreeMap<>();
+		this.rules = new HashSet<>();
+
+		for (Recording recording : recordings) {
+			if (!Boolean.parseBoolean(recording.getOption("overwrite"))) {
+				rules.add(ruleHash(recording));
+			}
+		}
+	}
+
+	/**
+	 * Answer whether the given airing has been saved, by a rule which hasn't
+	 * changed since, to a file which still has the size it had then. Entries
+	 * which fail these tests are forgotten.
+	 */
+	public synchronized boolean isCompleted(String address, String recording) {
+		Map<String, Entry> recordings = content.get(address);
+		Entry entry = recordings != null ? recordings.get(recording) : null;
+
+		if (entry == null) {
+			return false;
+		}
+
+		if (rules.contains(entry.rule) && entry.size > 0 && new File(entry.file).length() == entry.size) {
+			return true;
+		}
+
+		recordings.remove(recording);
+
+		return false;
+	}
+
+	public synchronized void load(File file) throws IOException {
+		Document document = null;
+
+		try (InputStream in = new FileInputStream(file)) {
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IOException(e);
+		}
+
+		Element root = document.getDocumentElement();
+
+		if (!TagLedger.equals(root.getTagName())) {
+			return;
+		}
+
+		NodeList tablos = root.getElementsByTagName(TagTablo);
+
+		for (int i = 0, n = tablos.getLength(); i < n; ++i) {
+			Element tablo = (Element) tablos.item(i);
+			Map<String, Entry> recordings = content.computeIfAbsent(tablo.getAttribute("ip"), ip -> new TreeMap<>());
+			NodeList children = tablo.getElementsByTagName(TagRecording);
+
+			for (int j = 0, m = children.getLength(); j < m; ++j) {
+				Element recording = (Element) children.item(j);
+
+				try {
+					long size = Long.parseLong(recording.getAttribute("size"));
+
+					recordings.put(recording.getAttribute("id"), // <br/>
+							new Entry(recording.getAttribute("file"), size, recording.getAttribute("rule")));
+				} catch (NumberFormatException e) {
+					// ignore the entry
+				}
+			}
+		}
+	}
+
+	/**
+	 * Note that the given airing has been saved to the given file under
+	 * the given recording rule.
+	 */
+	public synchronized void record(String address, String recording, Recording rule, File file) {
+		long size = file.length();
+
+		if (size > 0) {
+			content.computeIfAbsent(address, ip -> new TreeMap<>()) // <br/>
+					.put(recording, new Entry(file.getAbsolutePath(), size, ruleHash(rule)));
+		}
+	}
+
+	public synchronized void save(File file) throws IOException {
+		Document document;
+
+		try {
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+
+		Element ledger = newChildElement(document, TagLedger);
+
+		content.forEach((ip, recordings) -> {
+			Element tablo = newChildElement(ledger, TagTablo);
+
+			tablo.setAttribute("ip", ip);
+			recordings.forEach((id, entry) -> {
+				Element recording = newChildElement(tablo, TagRecording);
+
+				recording.setAttribute("id", id);
+				recording.setAttribute("file", entry.file);
+				recording.setAttribute("size", Long.toString(entry.size));
+				recording.setAttribute("rule", entry.rule);
+			});
+		});
+
+		try (OutputStream out = new FileOutputStream(file)) {
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+
+			transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+			transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+			transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+
+			transformer.transform(new DOMSource(ledger), new StreamResult(out));
+		} catch (TransformerException e) {
+			throw new IOException(e);
+		}
+	}
+
+}
@@ -11,10 +11,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
@@ -24,6 +26,10 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import org.xml.sax.SAXException;
 
+import tablo.io.Connections;
+import tablo.util.Events;
+import tablo.util.JsonProjection;
+
 public final class Main {
 
 	private static final class Options {
@@ -90,36 +96,179 @@ public final class Main {
 
 	}
 
+	private static final JsonProjection SeriesTitle = JsonProjection.compile("series.title");
+
 	private static final int TABLO_API_PORT = 8885;
 
 	private static List<String> getLocalTabloIps() throws IOException {
 		URL url = new URL("https://api.tablotv.com/assocserver/getipinfo/");
+		Events.Discovery event = new Events.Discovery();
+
+		event.begin();
+
+		List<String> ips = Util.selectJSON(url, "cpes.*.private_ip");
+
+		event.tablos = ips.size();
+		Events.commit(event);
 
-		return Util.selectJSON(url, "cpes.*.private_ip");
+		return ips;
 	}
 
 	public static URL getPlaylistURL(String tablo, String airing) throws IOException {
 		URL watchUrl = new URL("http", tablo, TABLO_API_PORT, airing + "/watch");
-		HttpURLConnection connection = (HttpURLConnection) watchUrl.openConnection();
+		Events.PlaylistRequest event = new Events.PlaylistRequest();
 
-		connection.setRequestMethod("POST");
+		event.begin();
+
+		// Only connecting is retried: once the POST has been sent, the Tablo
+		// may have started a session, and sending it again would start another.
+		HttpURLConnection connection = Connections.retry(() -> {
+			HttpURLConnection attempt = (HttpURLConnection) Connections.open(watchUrl);
+
+			attempt.setRequestMethod("POST");
+			attempt.connect();
+
+			return attempt;
+		});
+		URL playlist;
 
 		try (InputStream stream = connection.getInputStream()) {
 			Map<?, ?> watchData = (Map<?, ?>) Util.readJSON(new InputStreamReader(stream, StandardCharsets.UTF_8));
 			String playlistUrl = Util.selectUnique(watchData, "playlist_url");
 
-			return playlistUrl != null ? new URL(playlistUrl) : null;
+			playlist = playlistUrl != null ? new URL(playlistUrl) : null;
 		}
+
+		event.tablo = tablo;
+		event.airing = airing;
+		event.found = playlist != null;
+		Events.commit(event);
+
+		return playlist;
+	}
+
+	/**
+	 * List the airings on the given Tablo which some rule could select,
+	 * forgetting any cached airings which have been deleted.
+	 */
+	private static List<String> listAirings(String ip, Cache cache, RuleIndex rules, boolean debug)
+			throws IOException {
+		if (debug) {
+			showServerInfo(ip);
+		}
+
+		List<String> airings = readAirings(ip);
+
+		if (debug) {
+			int count = airings.size();
+
+			System.out.println();
+			System.out.printf("Found %d video%s at %s.%n", // <br/>
+					Integer.valueOf(count), count == 1 ? "" : "s", ip);
+		}
+
+		cache.retainRecordings(ip, airings);
+
+		List<String> selectable = rules.select(airings);
+
+		if (rules.isSeriesSelective()) {
+			selectSeries(ip, selectable, cache, rules, debug);
+		}
+
+		if (debug && selectable.size() < airings.size()) {
+			int count = airings.size() - selectable.size();
+
+			System.out.printf("Passing over %d video%s of types no rule selects.%n", // <br/>
+					Integer.valueOf(count), count == 1 ? "" : "s");
+		}
+
+		return selectable;
 	}
 
 	public static void main(String[] args) throws Exception {
 		new Main(args).run();
 	}
 
+	private static void printRequestSummary() {
+		System.out.printf("Requested %d JSON document%s; %d request%s answered from memory.%n", // <br/>
+				Long.valueOf(Util.getMemoMisses()), Util.getMemoMisses() == 1 ? "" : "s", // <br/>
+				Long.valueOf(Util.getMemoHits()), Util.getMemoHits() == 1 ? "" : "s");
+	}
+
 	private static List<String> readAirings(String ip) throws IOException {
-		URL airings = new URL("http", ip, TABLO_API_PORT, "/recordings/airings");
+		URL url = new URL("http", ip, TABLO_API_PORT, "/recordings/airings");
+		Events.AiringListing event = new Events.AiringListing();
+
+		event.begin();
+
+		List<String> airings = Util.selectJSON(url, "*");
+
+		event.tablo = ip;
+		event.airings = airings.size();
+		Events.commit(event);
+
+		return airings;
+	}
 
-		return Util.selectJSON(airings, "*");
+	private static void saveCache(Cache cache, File cacheFile) throws IOException {
+		if (cacheFile != null && (cacheFile.canWrite() || !cacheFile.exists())) {
+			Events.CacheSave event = new Events.CacheSave();
+
+			event.begin();
+			cache.save(cacheFile);
+			event.file = cacheFile.getPath();
+			event.bytes = cacheFile.length();
+			Events.commit(event);
+		}
+	}
+
+	/**
+	 * Remove from the given airings the uncached episodes of series which
+	 * no rule names. The title of each series is fetched once (and cached),
+	 * instead of fetching the metadata of each of its episodes.
+	 */
+	private static void selectSeries(String ip, List<String> airings, Cache cache, RuleIndex rules, boolean debug) {
+		Predicate<String> uncachedEpisode = airing -> "TV".equals(MediaHandler.getType(airing)) // <br/>
+				&& cache.getAttributes(ip, airing).isEmpty();
+
+		if (airings.stream().noneMatch(uncachedEpisode)) {
+			return;
+		}
+
+		Set<String> episodes = new HashSet<>();
+		int passed = 0;
+
+		try {
+			for (String series : Util.selectJSON(new URL("http", ip, TABLO_API_PORT, "/recordings/series"), "*")) {
+				URL seriesUrl = new URL("http", ip, TABLO_API_PORT, series);
+				String title;
+
+				try {
+					Map<String, String> parent = MediaHandler.fetchParent(seriesUrl, SeriesTitle, cache);
+
+					title = MediaHandler.trim(parent.get("series.title"));
+				} catch (IOException e) {
+					// keep its episodes, to be examined individually
+					System.err.println("Failed to fetch metadata for " + series + ": " + e.getLocalizedMessage());
+					title = null;
+				}
+
+				if (title == null || rules.canSelectSeries(title)) {
+					episodes.addAll(Util.selectJSON(new URL(seriesUrl, series + "/episodes"), "*"));
+				} else {
+					passed += 1;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to list series at " + ip + ": " + e.getLocalizedMessage());
+			return;
+		}
+
+		airings.removeIf(uncachedEpisode.and(airing -> !episodes.contains(airing)));
+
+		if (debug) {
+			System.out.printf("Passing over the episodes of %d series no rule names.%n", Integer.valueOf(passed));
+		}
 	}
 
 	private static void showServerInfo(String ip) throws IOException {
@@ -156,11 +305,37 @@ public final class Main {
 		tablos.removeIf(ip -> "auto".equalsIgnoreCase(ip));
 
 		// if no tablos were specifically identified, use all local devices
-		if (tablos.isEmpty()) {
+		// (unless running a plan, which names its Tablos)
+		if (tablos.isEmpty() && !options.containsKey("execute")) {
 			tablos.addAll(getLocalTabloIps());
 		}
 	}
 
+	/**
+	 * Answer the name of an option in effect which needs every job to be
+	 * known before any is started, or null if there is none.
+	 */
+	private String getBatchOption() {
+		if (Schedule.fromOption(options.get("schedule")) != Schedule.RULE) {
+			return "schedule";
+		}
+
+		for (Recording recording : recordings) {
+			if (Boolean.parseBoolean(recording.getOption("stripe"))) {
+				return "stripe";
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Answer the maximum number of recordings to download concurrently.
+	 */
+	private int getDownloads() {
+		return Math.max(1, intOption("downloads", 1));
+	}
+
 	private void handleOptions(String[] args) {
 		Consumer<String> setFlag = name -> options.put(name, "true");
 		BiConsumer<String, String> setOption = options::put;
@@ -168,20 +343,80 @@ public final class Main {
 		Options handler = new Options();
 
 		handler.value("cache", setOption);
+		handler.value("chunkSize", setOption);
+		handler.value("chunkWorkers", setOption);
 		handler.value("config", this::readConfig);
+		handler.value("connectTimeout", setOption);
 		handler.flag("debug", setFlag);
+		handler.flag("detectCommercials", setFlag);
 		handler.value("crf", setOption);
+		handler.flag("cutCommercials", setFlag);
+		handler.value("deadline", setOption);
+		handler.value("downloads", setOption);
+		handler.flag("events", setFlag);
+		handler.value("execute", setOption);
 		handler.value("ffmpeg", setOption);
+		handler.flag("keepDuplicates", setFlag);
+		handler.value("ledger", setOption);
 		handler.flag("list", setFlag);
 		handler.flag("overwrite", setFlag);
+		handler.value("plan", setOption);
+		handler.value("rateLimit", setOption);
+		handler.value("readTimeout", setOption);
+		handler.value("remuxer", setOption);
+		handler.value("retries", setOption);
+		handler.value("schedule", setOption);
+		handler.flag("stream", setFlag);
+		handler.flag("stripe", setFlag);
 		handler.value("tablos", setOption);
 		handler.flag("timestamp", setFlag);
+		handler.value("totalRateLimit", setOption);
 		handler.flag("unfinished", setFlag);
 		handler.value("videorate", setOption);
 
 		Arrays.stream(args).forEach(handler::handle);
 	}
 
+	private int intOption(String name, int defaultValue) {
+		String value = options.get(name);
+
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				System.err.println("Ignoring invalid " + name + " option: " + value);
+			}
+		}
+
+		return defaultValue;
+	}
+
+	/**
+	 * Load the cache named by the 'cache' option, if any, answering the file
+	 * to save it to, or null.
+	 */
+	private File loadCache(Cache cache) throws IOException {
+		String cacheFilename = options.get("cache");
+
+		if (cacheFilename == null) {
+			return null;
+		}
+
+		File cacheFile = new File(cacheFilename);
+
+		if (cacheFile.isFile() && cacheFile.canRead()) {
+			Events.CacheLoad event = new Events.CacheLoad();
+
+			event.begin();
+			cache.load(cacheFile);
+			event.file = cacheFile.getPath();
+			event.bytes = cacheFile.length();
+			Events.commit(event);
+		}
+
+		return cacheFile;
+	}
+
 	private void readConfig(String fileName) {
 		try {
 			Configuration.parse(fileName, recordings, options);
@@ -190,71 +425,159 @@ public final class Main {
 		}
 	}
 
+	/**
+	 * Answer the job selected by the recording rules for the given airing,
+	 * fetching its metadata if not cached, or null. Airings the ledger
+	 * shows as saved are passed over (unless listing).
+	 */
+	private Job resolve(String ip, String airing, Cache cache, OutputIndex outputs, BandwidthLimits limits,
+			Ledger ledger, boolean list, boolean debug) {
+		if (ledger != null && !list && ledger.isCompleted(ip, airing)) {
+			return null;
+		}
+
+		Map<String, String> attributes = cache.getAttributes(ip, airing);
+		MediaHandler handler = MediaHandler.newInstance(airing, attributes);
+
+		if (handler == null) {
+			return null;
+		}
+
+		if (attributes.isEmpty()) {
+			try {
+				URL airingUrl = new URL("http", ip, TABLO_API_PORT, airing);
+
+				handler.fetchAttributes(airingUrl, cache);
+			} catch (IOException e) {
+				System.err.println("Failed to fetch metadata for " // <br/>
+						+ airing + ": " + e.getLocalizedMessage());
+				return null;
+			}
+
+			handler.cacheAttributes(cache, ip, airing);
+		} else {
+			Events.MetadataFetch event = new Events.MetadataFetch();
+
+			event.tablo = ip;
+			event.airing = airing;
+			event.cacheHit = true;
+			Events.commit(event);
+		}
+
+		if (debug) {
+			try {
+				getPlaylistURL(ip, airing);
+			} catch (IOException e) {
+				System.out.println("Failed to get playlist URL for " + airing);
+				handler.printMeta(System.out);
+				return null;
+			}
+		}
+
+		return handler.getAction(ip, airing, recordings, outputs, limits, ledger);
+	}
+
 	private void run() throws IOException {
-		List<Runnable> actions = new ArrayList<>();
-		Cache cache = new Cache();
-		File cacheFile = null;
-		String cacheFilename = options.get("cache");
+		JobScheduler scheduler = new JobScheduler(Schedule.fromOption(options.get("schedule")),
+				JobScheduler.parseBudget(options.get("deadline")));
+		List<Job> actions;
+		OutputIndex outputs = new OutputIndex(recordings);
+		BandwidthLimits limits = BandwidthLimits.fromOptions(options);
+		String executeFilename = options.get("execute");
+		String ledgerFilename = options.get("ledger");
+		Ledger ledger = null;
+		String planFilename = options.get("plan");
 		boolean debug = Boolean.parseBoolean(options.get("debug"));
 
-		if (cacheFilename != null) {
-			cacheFile = new File(cacheFilename);
+		Events.setEnabled(Boolean.parseBoolean(options.get("events")));
+		Connections.configure( // <br/>
+				Math.max(1, intOption("connectTimeout", 10)) * 1000, // <br/>
+				Math.max(1, intOption("readTimeout", 30)) * 1000, // <br/>
+				Math.max(0, intOption("retries", 3)));
+
+		if (ledgerFilename != null) {
+			File ledgerFile = new File(ledgerFilename);
 
-			if (cacheFile.isFile() && cacheFile.canRead()) {
-				cache.load(cacheFile);
+			ledger = new Ledger(recordings);
+
+			if (ledgerFile.isFile() && ledgerFile.canRead()) {
+				ledger.load(ledgerFile);
 			}
 		}
 
-		for (String ip : tablos) {
-			if (debug) {
-				showServerInfo(ip);
+		if (executeFilename == null && planFilename == null && Boolean.parseBoolean(options.get("stream"))) {
+			String batchOption = getBatchOption();
+
+			if (batchOption == null) {
+				stream(scheduler, outputs, limits, ledger, debug);
+				return;
 			}
 
-			List<String> airings = readAirings(ip);
+			System.out.printf("Not streaming: '%s' needs every tablo to be scanned first%n", batchOption);
+		}
 
-			if (debug) {
-				int count = airings.size();
+		if (executeFilename != null) {
+			actions = Plan.read(new File(executeFilename), options, outputs, limits, ledger);
+		} else {
+			actions = scan(outputs, limits, ledger, debug);
+		}
 
-				System.out.println();
-				System.out.printf("Found %d video%s at %s.%n", // <br/>
-						Integer.valueOf(count), count == 1 ? "" : "s", ip);
-			}
+		if (planFilename != null) {
+			Plan.write(new File(planFilename), scheduler.order(actions));
+			System.out.printf("Wrote %d job%s to %s%n", // <br/>
+					Integer.valueOf(actions.size()), actions.size() == 1 ? "" : "s", planFilename);
+			return;
+		}
 
-			cache.retainRecordings(ip, airings);
+		if (limits != null) {
+			limits.listen(System.in);
+		}
 
-			for (String airing : airings) {
-				Map<String, String> attributes = cache.getAttributes(ip, airing);
-				MediaHandler handler = MediaHandler.newInstance(airing, attributes);
+		try (TranscodeGovernor governor = new TranscodeGovernor(getDownloads(), debug)) {
+			governor.execute(scheduler.prepare(actions));
+		} finally {
+			if (ledger != null) {
+				ledger.save(new File(ledgerFilename));
+			}
+		}
 
-				if (handler == null) {
-					continue;
-				}
+		if (!actions.isEmpty() && !Boolean.parseBoolean(options.get("list"))) {
+			scheduler.printSummary(System.out);
+		}
 
-				if (attributes.isEmpty()) {
-					try {
-						URL airingUrl = new URL("http", ip, TABLO_API_PORT, airing);
+		if (debug) {
+			printRequestSummary();
+		}
+	}
 
-						handler.fetchAttributes(airingUrl);
-					} catch (IOException e) {
-						System.err.println("Failed to fetch metadata for " // <br/>
-								+ airing + ": " + e.getLocalizedMessage());
-						continue;
-					}
+	/**
+	 * List the recordings on each Tablo, fetching any metadata not cached,
+	 * and answer the jobs selected by the recording rules.
+	 */
+	private List<Job> scan(OutputIndex outputs, BandwidthLimits limits, Ledger ledger, boolean debug)
+			throws IOException {
+		boolean list = Boolean.parseBoolean(options.get("list"));
+		List<Job> actions = new ArrayList<>();
+		Map<String, Long> latencies = new HashMap<>();
+		Cache cache = new Cache();
+		File cacheFile = loadCache(cache);
+		RuleIndex rules = new RuleIndex(recordings);
 
-					handler.cacheAttributes(cache, ip, airing);
-				}
+		for (String ip : tablos) {
+			long start = System.nanoTime();
+			List<String> airings;
+
+			try {
+				airings = listAirings(ip, cache, rules, debug);
+			} catch (IOException e) {
+				System.err.println("Failed to read recordings from " + ip + ": " + e.getLocalizedMessage());
+				continue;
+			}
 
-				if (debug) {
-					try {
-						getPlaylistURL(ip, airing);
-					} catch (IOException e) {
-						System.out.println("Failed to get playlist URL for " + airing);
-						handler.printMeta(System.out);
-						continue;
-					}
-				}
+			latencies.put(ip, Long.valueOf((System.nanoTime() - start) / 1_000_000));
 
-				Runnable action = handler.getAction(ip, airing, recordings);
+			for (String airing : airings) {
+				Job action = resolve(ip, airing, cache, outputs, limits, ledger, list, debug);
 
 				if (action != null) {
 					actions.add(action);
@@ -262,13 +585,60 @@ public final class Main {
 			}
 		}
 
-		if (cacheFile != null && (cacheFile.canWrite() || !cacheFile.exists())) {
-			cache.save(cacheFile);
+		saveCache(cache, cacheFile);
+
+		if (!Boolean.parseBoolean(options.get("keepDuplicates")) && !list) {
+			actions = DuplicateFilter.select(actions, latencies);
 		}
 
-		actions.stream().sorted().forEach(Runnable::run);
+		return actions;
 	}
 
+	/**
+	 * Save recordings as they are found, rather than after every Tablo has
+	 * been scanned. Jobs start in the order they are found, and only the
+	 * first copy found of a duplicated recording is saved (rather than the
+	 * best). The options which need a full scan (see getBatchOption) are
+	 * not supported.
+	 */
+	private void stream(JobScheduler scheduler, OutputIndex outputs, BandwidthLimits limits, Ledger ledger,
+			boolean debug) throws IOException {
+		boolean list = Boolean.parseBoolean(options.get("list"));
+		boolean keepDuplicates = list || Boolean.parseBoolean(options.get("keepDuplicates"));
+		Cache cache = new Cache();
+		File cacheFile = loadCache(cache);
+		RuleIndex rules = new RuleIndex(recordings);
+		ScanPipeline pipeline = new ScanPipeline(tablos, // <br/>
+				ip -> listAirings(ip, cache, rules, debug), // <br/>
+				(ip, airing) -> resolve(ip, airing, cache, outputs, limits, ledger, list, debug), // <br/>
+				keepDuplicates);
+
+		if (!keepDuplicates && tablos.size() > 1) {
+			System.out.println("Streaming: the first copy found of a duplicate is saved, not the best");
+		}
+
+		if (limits != null) {
+			limits.listen(System.in);
+		}
+
+		try (TranscodeGovernor governor = new TranscodeGovernor(getDownloads(), debug)) {
+			governor.execute(scheduler.prepare(pipeline.start()));
+		} finally {
+			saveCache(cache, cacheFile);
+
+			if (ledger != null) {
+				ledger.save(new File(options.get("ledger")));
+			}
+		}
+
+		if (!list) {
+			scheduler.printSummary(System.out);
+		}
+
+		if (debug) {
+			printRequestSummary();
+		}
+	}
 }
 
 //# Below are all of the configurable options, you can edit the defaults here.
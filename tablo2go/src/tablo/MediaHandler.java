@@ -4,21 +4,42 @@ import static tablo.Util.selectUnique;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URL;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.IntFunction;
 import java.util.regex.Pattern;
 
+import tablo.EditList.Range;
+import tablo.TranscodeGovernor.Mode;
+import tablo.TranscodeGovernor.Monitor;
+import tablo.io.Connections;
+import tablo.io.MediaInputStream;
+import tablo.io.Playlist;
+import tablo.io.StripedInputStream;
+import tablo.remux.Remuxer;
+import tablo.remux.TsProbe;
+import tablo.remux.UnsupportedStreamException;
+import tablo.util.Events;
+import tablo.util.JsonProjection;
 import tablo.util.StringTemplate;
 
 public abstract class MediaHandler {
@@ -33,12 +54,18 @@ public abstract class MediaHandler {
 		protected void addMeta(Map<String, String> meta) {
 			meta.put("type", "Manual recording");
 			meta.put("title", getTitle());
-			meta.put("aired", Util.formatAirTime(getAirDate()));
+			meta.put("aired", Util.formatAirTime(getAiring().getAirTime()));
 			super.addMeta(meta);
 		}
 
-		private String getAirDate() {
-			return getAndTrim("airDate");
+		@Override
+		protected List<String> getMetadataPaths() {
+			List<String> paths = super.getMetadataPaths();
+
+			paths.add("airing_details.datetime");
+			paths.add("airing_details.show_title");
+
+			return paths;
 		}
 
 		@Override
@@ -53,22 +80,22 @@ public abstract class MediaHandler {
 
 			values.put("title", title);
 
-			Calendar time = getTime();
+			ZonedDateTime time = getTime();
 
 			if (time != null) {
-				values.put("time", " " + FileTimeFormat.format(time.getTime()));
+				values.put("time", " " + FileTimeFormat.format(time));
 			}
 
 			return values;
 		}
 
 		@Override
-		protected Calendar getTime() {
-			return Util.parseAirTime(getAirDate());
+		protected ZonedDateTime getTime() {
+			return atLocalZone(getAiring().getAirTime());
 		}
 
 		private String getTitle() {
-			return getAndTrim("title");
+			return getAiring().getTitle();
 		}
 
 		@Override
@@ -88,6 +115,8 @@ public abstract class MediaHandler {
 
 	private static final class Movie extends MediaHandler {
 
+		private static final JsonProjection MovieProjection = JsonProjection.compile("movie.release_year");
+
 		private String moviePath;
 
 		Movie(Map<String, String> attributes) {
@@ -110,17 +139,26 @@ public abstract class MediaHandler {
 		}
 
 		@Override
-		public void fetchAttributes(URL airing) throws IOException {
-			super.fetchAttributes(airing);
+		protected void fetchMetadata(URL airing, Cache cache) throws IOException {
+			super.fetchMetadata(airing, cache);
 
 			if (!moviePath.isEmpty()) {
 				URL movieUrl = new URL(airing, moviePath);
-				Map<?, ?> movieMeta = (Map<?, ?>) Util.readJSON(movieUrl);
 
-				set("year", selectUnique(movieMeta, "movie.release_year"));
+				set("year", fetchParent(movieUrl, MovieProjection, cache).get("movie.release_year"));
 			}
 		}
 
+		@Override
+		protected List<String> getMetadataPaths() {
+			List<String> paths = super.getMetadataPaths();
+
+			paths.add("airing_details.show_title");
+			paths.add("movie_path");
+
+			return paths;
+		}
+
 		@Override
 		public Map<String, String> getPersistentMetadata() {
 			Map<String, String> persistent = new HashMap<>();
@@ -160,37 +198,22 @@ public abstract class MediaHandler {
 		}
 
 		@Override
-		protected Calendar getTime() {
-			Calendar time = null;
+		protected ZonedDateTime getTime() {
 			int year = getYear();
 
-			if (year != 0) {
-				time = Calendar.getInstance();
-
-				time.set(Calendar.YEAR, year);
-				time.set(Calendar.MONTH, 6);
-				time.set(Calendar.DAY_OF_MONTH, 1);
-				time.set(Calendar.HOUR_OF_DAY, 20);
-				time.set(Calendar.MINUTE, 0);
-				time.set(Calendar.SECOND, 0);
-				time.set(Calendar.MILLISECOND, 0);
+			if (year == 0) {
+				return null;
 			}
 
-			return time;
+			return ZonedDateTime.of(year, 7, 1, 20, 0, 0, 0, ZoneId.systemDefault());
 		}
 
 		private String getTitle() {
-			return getAndTrim("title");
+			return getAiring().getTitle();
 		}
 
 		private int getYear() {
-			String year = getAndTrim("year");
-
-			try {
-				return Integer.parseInt(year);
-			} catch (NumberFormatException e) {
-				return 0;
-			}
+			return getAiring().getYear();
 		}
 
 		@Override
@@ -208,43 +231,6 @@ public abstract class MediaHandler {
 
 	}
 
-	private static final class OrderedAction implements Comparable<OrderedAction>, Runnable {
-
-		private final Runnable action;
-
-		private final String airing;
-
-		private final int index;
-
-		OrderedAction(int index, String airing, Runnable action) {
-			super();
-			this.action = action;
-			this.airing = airing;
-			this.index = index;
-		}
-
-		@Override
-		public int compareTo(OrderedAction that) {
-			int result = Integer.compare(this.index, that.index);
-
-			if (result == 0) {
-				result = Integer.compare(this.airing.length(), that.airing.length());
-			}
-
-			if (result == 0) {
-				result = this.airing.compareTo(that.airing);
-			}
-
-			return result;
-		}
-
-		@Override
-		public void run() {
-			action.run();
-		}
-
-	}
-
 	private static final class Sports extends MediaHandler {
 
 		Sports(Map<String, String> attributes) {
@@ -255,12 +241,18 @@ public abstract class MediaHandler {
 		protected void addMeta(Map<String, String> meta) {
 			meta.put("type", "Sports event");
 			meta.put("title", getTitle());
-			meta.put("aired", Util.formatAirTime(getAirDate()));
+			meta.put("aired", Util.formatAirTime(getAiring().getAirTime()));
 			super.addMeta(meta);
 		}
 
-		private String getAirDate() {
-			return getAndTrim("airDate");
+		@Override
+		protected List<String> getMetadataPaths() {
+			List<String> paths = super.getMetadataPaths();
+
+			paths.add("airing_details.datetime");
+			paths.add("airing_details.show_title");
+
+			return paths;
 		}
 
 		@Override
@@ -275,22 +267,22 @@ public abstract class MediaHandler {
 
 			values.put("title", title);
 
-			Calendar time = getTime();
+			ZonedDateTime time = getTime();
 
 			if (time != null) {
-				values.put("time", " " + FileTimeFormat.format(time.getTime()));
+				values.put("time", " " + FileTimeFormat.format(time));
 			}
 
 			return values;
 		}
 
 		@Override
-		protected Calendar getTime() {
-			return Util.parseAirTime(getAirDate());
+		protected ZonedDateTime getTime() {
+			return atLocalZone(getAiring().getAirTime());
 		}
 
 		private String getTitle() {
-			return getAndTrim("title");
+			return getAiring().getTitle();
 		}
 
 		@Override
@@ -310,13 +302,7 @@ public abstract class MediaHandler {
 
 	private static final class TV extends MediaHandler {
 
-		private static final DateFormat AirDateFormat = new SimpleDateFormat("yyyy-MM-dd");
-
-		private static final boolean isSelectedEpisode(Recording recording, String episode) {
-			if (episode == null) {
-				return false;
-			}
-
+		private static final boolean isSelectedEpisode(Recording recording, int episode) {
 			String episodes = recording.getOption("episodes");
 
 			if (episodes == null) {
@@ -330,11 +316,7 @@ public abstract class MediaHandler {
 			return isSelectedIn(episode, list);
 		}
 
-		private static final boolean isSelectedSeason(Recording recording, String season) {
-			if (season == null) {
-				return false;
-			}
-
+		private static final boolean isSelectedSeason(Recording recording, int season) {
 			String seasons = recording.getOption("seasons");
 
 			if (seasons == null) {
@@ -356,23 +338,29 @@ public abstract class MediaHandler {
 		protected void addMeta(Map<String, String> meta) {
 			meta.put("type", "Television Show");
 			meta.put("series", getSeries());
-			meta.put("season", getSeason());
-			meta.put("episode", getEpisode());
+			meta.put("season", formatNumber(getSeason()));
+			meta.put("episode", formatNumber(getEpisode()));
 			meta.put("title", getTitle());
-			meta.put("aired", Util.formatAirTime(getAirDate()));
+			meta.put("aired", Util.formatAirTime(getAiring().getAirTime()));
 			super.addMeta(meta);
 		}
 
-		private String getAirDate() {
-			return getAndTrim("airDate");
+		private int getEpisode() {
+			return getAiring().getEpisode();
 		}
 
-		private String getEpisode() {
-			return getAndTrim("episode");
-		}
+		@Override
+		protected List<String> getMetadataPaths() {
+			List<String> paths = super.getMetadataPaths();
+
+			paths.add("airing_details.datetime");
+			paths.add("airing_details.show_title");
+			paths.add("episode.number");
+			paths.add("episode.orig_air_date");
+			paths.add("episode.season_number");
+			paths.add("episode.title");
 
-		private String getOriginalAirDate() {
-			return getAndTrim("originalAirDate");
+			return paths;
 		}
 
 		@Override
@@ -381,20 +369,20 @@ public abstract class MediaHandler {
 
 			persistent.put("show", getSeries());
 			persistent.put("title", getTitle());
-			persistent.put("season_number", getSeason());
-			persistent.put("episode_sort", getEpisode());
+			persistent.put("season_number", formatNumber(getSeason()));
+			persistent.put("episode_sort", formatNumber(getEpisode()));
 
 			persistent.values().removeIf(String::isEmpty);
 
 			return persistent;
 		}
 
-		private String getSeason() {
-			return getAndTrim("season");
+		private int getSeason() {
+			return getAiring().getSeason();
 		}
 
 		private String getSeries() {
-			return getAndTrim("series");
+			return getAiring().getSeries();
 		}
 
 		@Override
@@ -408,25 +396,23 @@ public abstract class MediaHandler {
 			Map<String, String> values = new HashMap<>();
 
 			values.put("series", series);
-			values.put("season", getSeason());
-			values.put("episode", getEpisode());
+			values.put("season", formatNumber(getSeason()));
+			values.put("episode", formatNumber(getEpisode()));
 			values.put("title", getTitle());
 
 			return values;
 		}
 
 		@Override
-		protected Calendar getTime() {
-			Calendar time = Util.parseAirTime(getAirDate());
+		protected ZonedDateTime getTime() {
+			ZonedDateTime time = atLocalZone(getAiring().getAirTime());
 
 			if (time != null) {
-				Calendar origDate = Util.parseTime(getOriginalAirDate(), AirDateFormat);
+				LocalDate origDate = getAiring().getOriginalAirDate();
 
 				if (origDate != null) {
 					// keep time but use original date
-					time.set(Calendar.YEAR, origDate.get(Calendar.YEAR));
-					time.set(Calendar.MONTH, origDate.get(Calendar.MONTH));
-					time.set(Calendar.DAY_OF_MONTH, origDate.get(Calendar.DAY_OF_MONTH));
+					time = time.with(origDate);
 				}
 			}
 
@@ -434,7 +420,7 @@ public abstract class MediaHandler {
 		}
 
 		private String getTitle() {
-			return getAndTrim("title");
+			return getAiring().getTitle();
 		}
 
 		@Override
@@ -460,14 +446,95 @@ public abstract class MediaHandler {
 
 	private static final Pattern CharmapPattern = Pattern.compile("|", Pattern.LITERAL);
 
-	protected static final DateFormat FileTimeFormat = new SimpleDateFormat("yyyy-MM-dd HHmm");
+	/**
+	 * The 'constant rate factor' used when commercials are removed
+	 * and neither 'crf' nor 'videoRate' is specified.
+	 */
+	private static final String DefaultCrf = "25";
+
+	protected static final DateTimeFormatter FileTimeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HHmm");
 
 	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
 
+	/**
+	 * The fields of the airing metadata read by each type of handler.
+	 */
+	private static final Map<Class<?>, JsonProjection> Projections = new ConcurrentHashMap<>();
+
+	protected static final ZonedDateTime atLocalZone(Instant time) {
+		return time != null ? time.atZone(ZoneId.systemDefault()) : null;
+	}
+
 	private static boolean booleanOption(Recording recording, String name) {
 		return Boolean.parseBoolean(recording.getOption(name));
 	}
 
+	private static double doubleOption(Recording recording, String name) {
+		String value = recording.getOption(name);
+
+		try {
+			return value != null ? Double.parseDouble(value) : 0.0;
+		} catch (NumberFormatException e) {
+			System.err.println("Bad value for " + name + ": " + value);
+			return 0.0;
+		}
+	}
+
+	/**
+	 * Copy the given source to the standard input of the given process
+	 * in a background thread, closing both when done.
+	 */
+	private static void feed(InputStream source, Process process) {
+		Thread feeder = new Thread(() -> {
+			try (InputStream input = source; OutputStream output = process.getOutputStream()) {
+				input.transferTo(output);
+			} catch (IOException e) {
+				if (process.isAlive()) {
+					System.err.println("Failed to read video: " + e.getLocalizedMessage());
+				}
+			}
+		}, "feeder");
+
+		feeder.setDaemon(true);
+		feeder.start();
+	}
+
+	/**
+	 * Answer the fields of the given projection (by path) from the parent
+	 * object (such as a movie or series) at the given URL. The cache is
+	 * consulted first, so each parent is fetched only once.
+	 */
+	static Map<String, String> fetchParent(URL parentUrl, JsonProjection projection, Cache cache)
+			throws IOException {
+		String address = parentUrl.getHost();
+		String parent = parentUrl.getPath();
+		Map<String, String> attributes = cache.getParent(address, parent);
+
+		if (attributes == null) {
+			long fetched = System.currentTimeMillis();
+			String[] values = Util.readJSON(parentUrl, projection);
+
+			attributes = new HashMap<>();
+
+			for (int i = 0; i < values.length; ++i) {
+				if (values[i] != null) {
+					attributes.put(projection.getPaths().get(i), values[i]);
+				}
+			}
+
+			cache.putParent(address, parent, attributes, fetched);
+		} else {
+			Events.MetadataFetch event = new Events.MetadataFetch();
+
+			event.tablo = address;
+			event.airing = parent;
+			event.cacheHit = true;
+			Events.commit(event);
+		}
+
+		return attributes;
+	}
+
 	protected static final String fixPathSegment(String segment, IntFunction<String> charmap) {
 		if (segment == null) {
 			return null;
@@ -508,6 +575,10 @@ public abstract class MediaHandler {
 		return buffer.toString();
 	}
 
+	protected static final String formatNumber(int value) {
+		return value == Airing.UNKNOWN ? "" : Integer.toString(value);
+	}
+
 	private static final IntFunction<String> getCharmap(Recording recording) {
 		String option = recording.getOption("charmap");
 
@@ -528,13 +599,136 @@ public abstract class MediaHandler {
 		return ch -> table.get(Character.valueOf((char) ch));
 	}
 
-	protected static final boolean isSelectedIn(String value, RangeList list) {
-		if (value != null) {
-			try {
-				return list.isEmpty() || list.contains(Integer.parseInt(value));
-			} catch (NumberFormatException e) {
-				// ignore
+	/**
+	 * Answer the video codec options for chunked encoding (the audio is
+	 * encoded separately, in one pass), or null if the recording
+	 * is not to be encoded that way (chunked encoding requires 'chunkSize'
+	 * and one of 'crf' or 'videoRate').
+	 */
+	private static List<String> getChunkCodecOptions(Recording recording) {
+		if (!(doubleOption(recording, "chunkSize") > 0)) {
+			return null;
+		}
+
+		List<String> options = new ArrayList<>();
+		String option;
+
+		if ((option = recording.getOption("crf")) != null) {
+			options.addAll(Arrays.asList("-codec:v", "h264", "-crf", option));
+		} else if ((option = recording.getOption("videoRate")) != null) {
+			options.addAll(Arrays.asList("-codec:v", "h264", "-b:v", option));
+		} else {
+			return null;
+		}
+
+		return options;
+	}
+
+	/**
+	 * Answer the commercial breaks to be removed while saving to the given
+	 * file, or null if 'cutCommercials' is not enabled or no edit list
+	 * (e.g. from a previous run with 'detectCommercials') exists.
+	 */
+	private static EditList getCuts(Recording recording, File dest, OutputIndex outputs) throws IOException {
+		if (!booleanOption(recording, "cutCommercials")) {
+			return null;
+		}
+
+		File edlFile = getEditListFile(dest);
+
+		if (!outputs.exists(edlFile)) {
+			return null;
+		}
+
+		EditList cuts = EditList.read(edlFile);
+
+		if (cuts.isEmpty()) {
+			return null;
+		}
+
+		System.out.printf("Removing %d commercial break%s using %s%n", // <br/>
+				Integer.valueOf(cuts.getCuts().size()), cuts.getCuts().size() == 1 ? "" : "s",
+				edlFile.getAbsolutePath());
+
+		return cuts;
+	}
+
+	/**
+	 * Answer the edit list file that accompanies the given video file.
+	 */
+	private static File getEditListFile(File video) {
+		String name = video.getName();
+		int dot = name.lastIndexOf('.');
+
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+
+		return new File(video.getParentFile(), name + EditList.EXTENSION);
+	}
+
+	/**
+	 * Answer whether saving for the given recording will decode and/or encode
+	 * video, rather than only copying streams.
+	 */
+	private static Mode getMode(Recording recording) {
+		if (recording.getOption("crf") != null || recording.getOption("videoRate") != null) {
+			return Mode.ENCODE;
+		}
+
+		if (booleanOption(recording, "cutCommercials") || booleanOption(recording, "detectCommercials")) {
+			return Mode.ENCODE;
+		}
+
+		return Mode.COPY;
+	}
+
+	/**
+	 * Answer the playlist of the given job or, if it cannot be obtained,
+	 * remove the output file if it is still an empty placeholder and
+	 * answer null.
+	 */
+	private static URL getPlaylist(Job job, File dest) {
+		try {
+			URL playlist = job.getPlaylist();
+
+			if (playlist != null) {
+				return playlist;
 			}
+
+			System.err.println("Failed to get playlist URL for " + job.getPath());
+		} catch (IOException e) {
+			System.err.println("Failed to get playlist URL for " + job.getPath() + ": " + e.getLocalizedMessage());
+		}
+
+		if (dest.length() == 0) {
+			dest.delete();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Answer the type of the airing at the given path, as named by the 'type'
+	 * option of recording rules, or null if it is not of a known type.
+	 */
+	public static String getType(String airing) {
+		if (airing.startsWith("/recordings/programs/")) {
+			return "Manual";
+		} else if (airing.startsWith("/recordings/movies/")) {
+			return "Movie";
+		} else if (airing.startsWith("/recordings/sports/")) {
+			return "Sports";
+		} else if (airing.startsWith("/recordings/series/")) {
+			return "TV";
+		} else {
+			return null;
+		}
+	}
+
+	protected static final boolean isSelectedIn(int value, RangeList list) {
+		if (value != Airing.UNKNOWN) {
+			return list.isEmpty() || list.contains(value);
 		}
 
 		return false;
@@ -559,19 +753,28 @@ public abstract class MediaHandler {
 	}
 
 	public static MediaHandler newInstance(String airing, Map<String, String> attributes) {
-		if (airing.startsWith("/recordings/programs/")) {
+		String type = getType(airing);
+
+		if (type == null) {
+			return null;
+		}
+
+		switch (type) {
+		case "Manual":
 			return new Manual(attributes);
-		} else if (airing.startsWith("/recordings/movies/")) {
+		case "Movie":
 			return new Movie(attributes);
-		} else if (airing.startsWith("/recordings/sports/")) {
+		case "Sports":
 			return new Sports(attributes);
-		} else if (airing.startsWith("/recordings/series/")) {
+		default:
 			return new TV(attributes);
-		} else {
-			return null;
 		}
 	}
 
+	private static InputStream openSegment(String tablo, URL segment, BandwidthLimits limits) throws IOException {
+		return limits != null ? limits.open(tablo, segment) : MediaInputStream.open(segment);
+	}
+
 	protected static final String padLeft(String string, int length, char padChar) {
 		int pad = length - string.length();
 
@@ -604,7 +807,39 @@ public abstract class MediaHandler {
 		return string;
 	}
 
-	private static Process startFilter(Recording recording, URL input, File output, Map<String, String> metadata)
+	/**
+	 * Answer the streams at the start of the first segment of the given
+	 * (non-empty) playlist.
+	 */
+	private static TsProbe probe(String tablo, Playlist playlist, BandwidthLimits limits) throws IOException {
+		try (InputStream input = openSegment(tablo, playlist.getSegments().get(0).url, limits)) {
+			return TsProbe.read(input);
+		}
+	}
+
+	private static void saveBreaks(EditList breaks, File video) {
+		if (breaks.isEmpty()) {
+			System.out.println("No commercial breaks detected in " + video.getAbsolutePath());
+			return;
+		}
+
+		File edlFile = getEditListFile(video);
+
+		try {
+			breaks.write(edlFile);
+			System.out.printf("Detected %d commercial break%s in %s%n", // <br/>
+					Integer.valueOf(breaks.getCuts().size()), breaks.getCuts().size() == 1 ? "" : "s",
+					video.getAbsolutePath());
+		} catch (IOException e) {
+			System.err.println("Failed to write " + edlFile + ": " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * @param source if not null, the input is read from this stream, rather than by ffmpeg
+	 */
+	private static Process startFilter(Recording recording, URL input, InputStream source, File output,
+			Map<String, String> metadata, EditList cuts, BreakDetector detector, Monitor monitor)
 			throws IOException {
 		List<String> command = new ArrayList<>(20);
 		String option;
@@ -615,34 +850,87 @@ public abstract class MediaHandler {
 
 		command.add("-y");
 
-		command.add("-loglevel");
-		command.add("error");
+		if (detector != null) {
+			// the detection filters report at the 'info' level
+			command.add("-hide_banner");
+
+			command.add("-loglevel");
+			command.add("level+info");
+		} else {
+			command.add("-loglevel");
+			command.add("error");
+		}
 
 		command.add("-nostdin");
 
 		command.add("-nostats");
 
-		command.add("-i");
-		command.add(input.toExternalForm());
+		// report progress (including speed) on stdout
+		command.add("-progress");
+		command.add("pipe:1");
 
-		command.add("-bsf:a");
-		command.add("aac_adtstoasc");
+		if (source != null) {
+			command.add("-f");
+			command.add("mpegts");
 
-		if ((option = recording.getOption("crf")) != null) {
-			command.add("-codec:a");
-			command.add("copy");
+			command.add("-i");
+			command.add("pipe:0");
+		} else {
+			// give up on a stalled connection rather than waiting forever
+			command.add("-rw_timeout");
+			command.add(Long.toString(Connections.getReadTimeout() * 1000L));
+
+			command.add("-i");
+			command.add(input.toExternalForm());
+		}
+
+		if (cuts != null) {
+			// trimming requires both video and audio to be re-encoded
+			command.add("-filter_complex");
+			command.add(CommercialRemover.makeFilter(cuts.getKeptRanges()));
+
+			command.add("-map");
+			command.add("[v]");
+
+			command.add("-map");
+			command.add("[a]");
+
+			command.add("-codec:v");
+			command.add("h264");
+
+			if ((option = recording.getOption("videoRate")) != null && recording.getOption("crf") == null) {
+				command.add("-b:v");
+				command.add(option);
+			} else {
+				command.add("-crf");
+				command.add(recording.getOption("crf") != null ? recording.getOption("crf") : DefaultCrf);
+			}
 
-			command.add("-crf");
-			command.add(option);
-		} else if ((option = recording.getOption("videoRate")) != null) {
 			command.add("-codec:a");
-			command.add("copy");
+			command.add("aac");
 
-			command.add("-b:v");
-			command.add(option);
+			command.add("-b:a");
+			command.add("160k");
 		} else {
-			command.add("-c");
-			command.add("copy");
+			command.add("-bsf:a");
+			command.add("aac_adtstoasc");
+
+			if ((option = recording.getOption("crf")) != null) {
+				command.add("-codec:a");
+				command.add("copy");
+
+				command.add("-crf");
+				command.add(option);
+			} else if ((option = recording.getOption("videoRate")) != null) {
+				command.add("-codec:a");
+				command.add("copy");
+
+				command.add("-b:v");
+				command.add(option);
+			} else {
+				command.add("-c");
+				command.add("copy");
+			}
 		}
 
 		metadata.forEach((key, value) -> {
@@ -655,107 +943,183 @@ public abstract class MediaHandler {
 
 		command.add(output.getAbsolutePath());
 
-		return new ProcessBuilder(command) // <br/>
-				.redirectError(ProcessBuilder.Redirect.INHERIT) // <br/>
-				.redirectOutput(ProcessBuilder.Redirect.INHERIT) // <br/>
-				.start();
+		if (detector == null) {
+			Process process = new ProcessBuilder(command) // <br/>
+					.redirectError(ProcessBuilder.Redirect.INHERIT) // <br/>
+					.start();
+
+			TranscodeGovernor.watchProgress(process.getInputStream(), monitor);
+
+			if (source != null) {
+				feed(source, process);
+			}
+
+			return process;
+		}
+
+		// a second output examines the same decoded input for commercial breaks
+		command.addAll(BreakDetector.getOutputOptions());
+
+		Process process = new ProcessBuilder(command).start();
+
+		detector.monitor(process.getErrorStream());
+		TranscodeGovernor.watchProgress(process.getInputStream(), monitor);
+
+		if (source != null) {
+			feed(source, process);
+		}
+
+		return process;
 	}
 
 	protected static final String trim(String string) {
 		return string != null ? string.trim() : "";
 	}
 
+	private Airing airing;
+
 	private final Map<String, String> attributes;
 
-	private boolean finished;
+	/**
+	 * When the attributes were fetched from the Tablo, in milliseconds since
+	 * the epoch, or zero if they came from the cache.
+	 */
+	private long fetched;
 
 	protected MediaHandler(Map<String, String> attributes) {
 		super();
+		this.airing = Airing.fromAttributes(attributes);
 		this.attributes = new HashMap<>(attributes);
-		this.finished = true;
+		this.fetched = 0;
 	}
 
 	protected void addMeta(Map<String, String> meta) {
-		String size = getSize();
+		long size = airing.getSize();
 
-		try {
-			size = String.format("%,d bytes", Long.valueOf(size));
-		} catch (NumberFormatException e) {
-			// leave unformated
+		if (size != Airing.UNKNOWN) {
+			meta.put("size", String.format("%,d bytes", Long.valueOf(size)));
 		}
 
-		meta.put("size", size);
-
-		if (!finished) {
+		if (!isFinished()) {
 			meta.put("unfinished", "true");
-		} else if ("false".equalsIgnoreCase(getAndTrim("clean"))) {
+		} else if (!airing.isClean()) {
 			meta.put("clean", "false");
 		}
 	}
 
-	public final void cacheAttributes(Cache cache, String ip, String airing) {
-		if (finished) {
-			cache.putAttributes(ip, airing, attributes);
+	public final void cacheAttributes(Cache cache, String ip, String airingPath) {
+		if (isFinished()) {
+			cache.putAttributes(ip, airingPath, attributes, fetched);
 		}
 	}
 
-	public void fetchAttributes(URL airing) throws IOException {
-		Map<?, ?> meta = (Map<?, ?>) Util.readJSON(airing);
+	/**
+	 * Encode the given video in chunks, concurrently.
+	 */
+	private void encodeChunked(Recording recording, List<String> codecOptions, URL video, EditList cuts,
+			Monitor monitor, File output) throws IOException {
+		// segments of the playlist start with key frames
+		Playlist playlist = Playlist.read(video);
+		double duration = playlist.getDuration();
+		List<Range> ranges = new ArrayList<>();
+
+		if (cuts == null) {
+			ranges.add(new Range(0.0, duration));
+		} else {
+			for (Range range : cuts.getKeptRanges()) {
+				double end = Math.min(range.end, duration);
 
-		processMetadata(meta);
+				if (range.start < end) {
+					ranges.add(new Range(range.start, end));
+				}
+			}
+		}
+
+		// the governor counts this as one encoding task, so it uses only that share
+		int cores = monitor.getCores();
+		int workers = (int) doubleOption(recording, "chunkWorkers");
+
+		if (workers <= 0) {
+			workers = Math.max(2, cores / 4);
+		}
+
+		double chunkSize = doubleOption(recording, "chunkSize");
+
+		new ChunkedEncoder(recording.getOption("ffmpeg"), codecOptions, chunkSize, workers, cores) // <br/>
+				.encode(playlist.getURL().toExternalForm(), ranges, playlist.getSegmentTimes(), // <br/>
+						getPersistentMetadata(), output);
+	}
+
+	/**
+	 * Fetch the attributes of the airing at the given URL, using the given
+	 * cache for the objects (such as movies) it belongs to.
+	 */
+	public final void fetchAttributes(URL airingUrl, Cache cache) throws IOException {
+		fetched = System.currentTimeMillis();
+		fetchMetadata(airingUrl, cache);
+
+		airing = Airing.fromAttributes(attributes);
+	}
+
+	protected void fetchMetadata(URL airingUrl, Cache cache) throws IOException {
+		JsonProjection projection = Projections.computeIfAbsent(getClass(),
+				type -> JsonProjection.compile(getMetadataPaths()));
+
+		// only the fields processMetadata() reads are taken from the response
+		processMetadata(projection.toTree(Util.readJSON(airingUrl, projection)));
 	}
 
 	/**
 	 * @param ip
 	 * @param airing
 	 * @param recordings
+	 * @param outputs
+	 * @param limits
+	 * @param ledger
 	 * @return
-	 * @throws IOException
 	 */
-	public final Runnable getAction(String ip, String airing, List<Recording> recordings) throws IOException {
+	public final Job getAction(String ip, String airing, List<Recording> recordings, OutputIndex outputs,
+			BandwidthLimits limits, Ledger ledger) {
 		for (int index = 0, count = recordings.size(); index < count; ++index) {
 			Recording recording = recordings.get(index);
 
-			if (isSelected(recording) && !skipExisting(recording)) {
-				Runnable action = null;
-
-				if (booleanOption(recording, "list")) {
-					action = () -> {
-						System.out.printf("Video: %s%n", airing);
-						printMeta(System.out);
-					};
-				} else if (isFinished() || booleanOption(recording, "includeUnfinished")) {
-					URL playlist = Main.getPlaylistURL(ip, airing);
-
-					if (playlist != null) {
-						action = () -> save(recording, playlist);
-					} else {
-						System.err.println("Failed to get playlist URL for " + airing);
-					}
-				}
-
-				if (action != null) {
-					return new OrderedAction(index, airing, action);
-				}
-
-				break;
+			if (isSelected(recording) && !skipExisting(recording, outputs)) {
+				return newJob(index, ip, airing, recording, outputs, limits, ledger);
 			}
 		}
 
 		return null;
 	}
 
-	protected final String getAndTrim(String key) {
-		return attributes.getOrDefault(key, "").trim();
+	public final Airing getAiring() {
+		return airing;
+	}
+
+	/**
+	 * @return the attributes of the airing, as cached
+	 */
+	public final Map<String, String> getAttributes() {
+		return Collections.unmodifiableMap(attributes);
 	}
 
+	/**
+	 * Answer the paths of the fields of the airing metadata which
+	 * processMetadata() reads; overrides add to the list.
+	 */
 	@SuppressWarnings("static-method")
-	public Map<String, String> getPersistentMetadata() {
-		return Collections.emptyMap();
+	protected List<String> getMetadataPaths() {
+		List<String> paths = new ArrayList<>();
+
+		paths.add("video_details.clean");
+		paths.add("video_details.size");
+		paths.add("video_details.state");
+
+		return paths;
 	}
 
-	protected final String getSize() {
-		return getAndTrim("size");
+	@SuppressWarnings("static-method")
+	public Map<String, String> getPersistentMetadata() {
+		return Collections.emptyMap();
 	}
 
 	protected final File getTargetFile(Recording recording) {
@@ -779,14 +1143,123 @@ public abstract class MediaHandler {
 
 	protected abstract Map<String, String> getTemplateMap(Recording recording);
 
-	protected abstract Calendar getTime();
+	protected abstract ZonedDateTime getTime();
 
 	protected final boolean isFinished() {
-		return finished;
+		return airing.isFinished();
 	}
 
 	public abstract boolean isSelected(Recording recording);
 
+	/**
+	 * Answer the job for the airing under the given recording rule, or null
+	 * if there is nothing to do.
+	 */
+	final Job newJob(int index, String ip, String airing, Recording recording, OutputIndex outputs,
+			BandwidthLimits limits, Ledger ledger) {
+		if (booleanOption(recording, "list")) {
+			return new Job(index, ip, airing, this, recording, Mode.COPY, false, (job, monitor) -> {
+				System.out.printf("Video: %s%n", airing);
+				printMeta(System.out);
+			});
+		} else if (isFinished() || booleanOption(recording, "includeUnfinished")) {
+			// the playlist is only requested when the job starts
+			return new Job(index, ip, airing, this, recording, getMode(recording), true,
+					(job, monitor) -> save(recording, job, outputs, limits, ledger, monitor));
+		} else {
+			return null;
+		}
+	}
+
+	private StripedInputStream.Source newSource(String tablo, Playlist playlist, BandwidthLimits limits) {
+		return new StripedInputStream.Source(playlist, segment -> openSegment(tablo, segment, limits));
+	}
+
+	/**
+	 * Open the video of the given job, alternating segments between the Tablos
+	 * which have a copy of the same recording. A copy is only used if its
+	 * playlist is aligned and its first segment has the same streams, starting
+	 * at the same time, as that of the job's Tablo: the segments are joined
+	 * into one stream, whose reader follows the streams it sees first.
+	 *
+	 * @return the video, or null if no other Tablo has an aligned copy
+	 */
+	private InputStream openStriped(Job job, URL video, BandwidthLimits limits) throws IOException {
+		Playlist primary = Playlist.read(video);
+		List<StripedInputStream.Source> sources = new ArrayList<>();
+		Set<String> tablos = new HashSet<>();
+		TsProbe first = null;
+
+		sources.add(newSource(job.getTablo(), primary, limits));
+		tablos.add(job.getTablo());
+
+		for (Job alternate : job.getAlternates()) {
+			if (!tablos.add(alternate.getTablo())) {
+				continue;
+			}
+
+			URL url = Main.getPlaylistURL(alternate.getTablo(), alternate.getPath());
+			Playlist playlist = url != null ? Playlist.read(url) : null;
+
+			if (playlist == null || !primary.isAlignedWith(playlist)) {
+				System.out.println("Not fetching from " + alternate.getTablo() + "; playlists differ");
+				continue;
+			}
+
+			if (first == null) {
+				first = probe(job.getTablo(), primary, limits);
+			}
+
+			TsProbe other;
+
+			try {
+				other = probe(alternate.getTablo(), playlist, limits);
+			} catch (IOException e) {
+				System.out.println("Not fetching from " + alternate.getTablo() + "; " + e.getLocalizedMessage());
+				continue;
+			}
+
+			if (first.matches(other)) {
+				sources.add(newSource(alternate.getTablo(), playlist, limits));
+			} else {
+				System.out.println("Not fetching from " + alternate.getTablo() + "; streams differ");
+			}
+		}
+
+		if (sources.size() < 2) {
+			return null;
+		}
+
+		System.out.format("Fetching %s from %d Tablos%n", job.getPath(), Integer.valueOf(sources.size()));
+
+		return new StripedInputStream(sources);
+	}
+
+	/**
+	 * Open the video of the given job for reading here rather than in ffmpeg,
+	 * fetching segments from copies on other Tablos or observing bandwidth
+	 * limits, as configured.
+	 *
+	 * @param required whether to open the video even if neither applies
+	 * @return the video, or null if it should be read by ffmpeg
+	 */
+	private InputStream openVideo(Recording recording, Job job, URL video, BandwidthLimits limits, boolean required)
+			throws IOException {
+		if (booleanOption(recording, "stripe")) {
+			InputStream striped = openStriped(job, video, limits);
+
+			if (striped != null) {
+				return striped;
+			}
+		}
+
+		if (limits != null) {
+			return limits.open(job.getTablo(), video);
+		}
+
+		return required ? MediaInputStream.open(video) : null;
+	}
+
 	protected final void printMeta(PrintStream out) {
 		Map<String, String> meta = new LinkedHashMap<>();
 
@@ -803,32 +1276,62 @@ public abstract class MediaHandler {
 
 	protected void processMetadata(Map<?, ?> meta) {
 		trimAndSet("clean", selectUnique(meta, "video_details.clean"));
-		finished = "finished".equalsIgnoreCase(trim(selectUnique(meta, "video_details.state")));
+		String state = trim(selectUnique(meta, "video_details.state"));
+
+		set("state", state.isEmpty() ? "unknown" : state.toLowerCase(Locale.ROOT));
 		trimAndSet("size", selectUnique(meta, "video_details.size"));
 	}
 
-	private void save(Recording recording, URL video) {
+	/**
+	 * Save the video with the in-process remuxer, if it was selected
+	 * and the video need not be re-encoded.
+	 *
+	 * @return whether the video was saved
+	 */
+	private boolean remux(Recording recording, Job job, URL video, BandwidthLimits limits, File output)
+			throws IOException {
+		if (!"java".equalsIgnoreCase(recording.getOption("remuxer")) || getMode(recording) != Mode.COPY) {
+			return false;
+		}
+
+		Transcoder remuxer = new Remuxer();
+
+		try (InputStream source = openVideo(recording, job, video, limits, true)) {
+			remuxer.transcode(source, output, getPersistentMetadata());
+			return true;
+		} catch (UnsupportedStreamException e) {
+			System.out.println("Using ffmpeg for " + video + ": " + e.getLocalizedMessage());
+			return false;
+		}
+	}
+
+	private void save(Recording recording, Job job, OutputIndex outputs, BandwidthLimits limits, Ledger ledger,
+			Monitor monitor) {
 		try {
 			File dest = getTargetFile(recording);
 
 			if (dest == null) {
-				System.out.println("Skipping " + video);
+				System.out.println("Skipping " + job.getPath());
 				return;
 			}
 
 			File folder = dest.getParentFile();
 
-			folder.mkdirs();
+			if (!outputs.isDirectory(folder)) {
+				folder.mkdirs();
 
-			if (!folder.isDirectory()) {
-				System.out.println("Skipping " + video + "; " + folder + " is not a directory");
-				return;
+				if (!folder.isDirectory()) {
+					System.out.println("Skipping " + job.getPath() + "; " + folder + " is not a directory");
+					return;
+				}
+
+				outputs.addDirectory(folder);
 			}
 
 			boolean timestamp = booleanOption(recording, "timestamp");
 			boolean fetch = false;
 
-			if (dest.createNewFile()) {
+			if (!outputs.exists(dest) && dest.createNewFile()) {
 				System.out.println("Saving " + dest.getAbsolutePath());
 				fetch = true;
 			} else if (booleanOption(recording, "overwrite")) {
@@ -839,19 +1342,62 @@ public abstract class MediaHandler {
 			}
 
 			if (fetch) {
+				URL video = getPlaylist(job, dest);
+
+				if (video == null) {
+					return;
+				}
+
 				// ffmpeg doesn't like non-ASCII filenames
 				File temp = File.createTempFile("tablo-", ".tmp", folder);
+				BreakDetector detector = null;
+				// whether the whole video was saved (a chunked encode or remux
+				// which fails throws instead)
+				boolean completed = true;
 
 				try {
-					Process process = startFilter(recording, video, temp, getPersistentMetadata());
-
-					try {
-						process.waitFor();
-					} catch (InterruptedException e) {
-						// ignore
+					List<String> chunkOptions = getChunkCodecOptions(recording);
+					EditList cuts = getCuts(recording, dest, outputs);
+
+					if (chunkOptions != null) {
+						encodeChunked(recording, chunkOptions, video, cuts, monitor, temp);
+					} else if (!remux(recording, job, video, limits, temp)) {
+						if (cuts == null && booleanOption(recording, "detectCommercials")) {
+							detector = new BreakDetector();
+						}
+
+						InputStream source = openVideo(recording, job, video, limits, false);
+						Events.FfmpegJob event = new Events.FfmpegJob();
+
+						event.begin();
+
+						Process process = startFilter(recording, video, source, temp, getPersistentMetadata(),
+								cuts, detector, monitor);
+
+						try {
+							event.exitCode = process.waitFor();
+							completed = event.exitCode == 0;
+						} catch (InterruptedException e) {
+							completed = false;
+						}
+
+						event.tablo = job.getTablo();
+						event.airing = job.getPath();
+						event.output = dest.getPath();
+						Events.commit(event);
 					}
 
-					if (!(dest.delete() && temp.renameTo(dest))) {
+					if (dest.delete() && temp.renameTo(dest)) {
+						outputs.addFile(dest);
+
+						if (ledger != null && completed) {
+							ledger.record(job.getTablo(), job.getPath(), recording, dest);
+						}
+
+						if (detector != null) {
+							saveBreaks(detector.finish(), dest);
+						}
+					} else {
 						System.err.format("Failed to rename %s to '%s'%n", temp.getName(), dest.getName());
 					}
 				} finally {
@@ -862,32 +1408,32 @@ public abstract class MediaHandler {
 			}
 
 			if (timestamp) {
-				Calendar time = getTime();
+				ZonedDateTime time = getTime();
 
 				if (time != null) {
-					int min = time.get(Calendar.MINUTE);
+					int min = time.getMinute();
 
 					// truncate to a multiple of 5 minutes
 					min -= min % 5;
 
-					time.set(Calendar.MINUTE, min);
+					time = time.withMinute(min).withSecond(0).withNano(0);
 
 					if (!fetch) {
 						System.out.println("Updating timestamp for " + dest.getAbsolutePath());
 					}
 
-					if (time.get(Calendar.YEAR) < 1970) {
+					if (time.getYear() < 1970) {
 						System.out.println("Clamping timestamp to 1970 for " + dest.getAbsolutePath());
-						time.set(Calendar.YEAR, 1970);
+						time = time.withYear(1970);
 					}
 
-					dest.setLastModified(time.getTimeInMillis());
+					dest.setLastModified(time.toInstant().toEpochMilli());
 				} else if (booleanOption(recording, "debug")) {
 					System.out.println("No timestamp provided for " + dest.getAbsolutePath());
 				}
 			}
 		} catch (IOException e) {
-			System.err.println("Failed to save " + video + ": " + e.getLocalizedMessage());
+			System.err.println("Failed to save " + job.getPath() + ": " + e.getLocalizedMessage());
 		}
 	}
 
@@ -899,12 +1445,12 @@ public abstract class MediaHandler {
 		}
 	}
 
-	private boolean skipExisting(Recording recording) {
+	private boolean skipExisting(Recording recording, OutputIndex outputs) {
 		if ("ignore".equalsIgnoreCase(recording.getOption("existing"))) {
 			File target = getTargetFile(recording);
 
 			if (target != null) {
-				return target.exists();
+				return outputs.exists(target);
 			}
 		}
 
@@ -0,0 +1,203 @@
+package tablo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory index of the files and directories below the output roots
+ * named by the configured recordings. The roots are scanned once, on first
+ * use, so that existence checks for individual airings do not each require
+ * a round-trip to the (possibly remote) file system.
+ */
+public final class OutputIndex {
+
+	private static final String ReferenceStart = "${";
+
+	/**
+	 * Answer the directory containing everything the given output template
+	 * can expand to: the directory part of the text before the first reference.
+	 * The working directory and the root of a drive are too broad to index,
+	 * so null is answered for those (leaving such paths to the file system).
+	 */
+	private static Path getRoot(String template) {
+		int reference = template.indexOf(ReferenceStart);
+		String prefix = reference < 0 ? template : template.substring(0, reference);
+		int separator = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf('\\'));
+
+		if (separator < 0) {
+			return null;
+		}
+
+		Path root = normalize(new File(prefix.substring(0, separator + 1)));
+
+		if (root.getParent() == null || root.equals(normalize(new File("")))) {
+			return null;
+		}
+
+		return root;
+	}
+
+	private static Path normalize(File file) {
+		return file.toPath().toAbsolutePath().normalize();
+	}
+
+	private final Set<Path> directories;
+
+	private final Set<Path> files;
+
+	private final Collection<Recording> recordings;
+
+	private List<Path> roots;
+
+	public OutputIndex(Collection<Recording> recordings) {
+		super();
+		this.directories = ConcurrentHashMap.newKeySet();
+		this.files = ConcurrentHashMap.newKeySet();
+		this.recordings = recordings;
+		this.roots = null;
+	}
+
+	private void addDirectories(Path folder) {
+		for (Path path = folder; path != null && directories.add(path);) {
+			path = path.getParent();
+		}
+	}
+
+	/**
+	 * Record the existence of the given directory and its ancestors.
+	 */
+	public void addDirectory(File folder) {
+		addDirectories(normalize(folder));
+	}
+
+	/**
+	 * Record the existence of the given file (e.g. because a job just produced it).
+	 */
+	public void addFile(File file) {
+		Path path = normalize(file);
+
+		files.add(path);
+		addDirectories(path.getParent());
+	}
+
+	public boolean exists(File file) {
+		Path path = normalize(file);
+
+		if (isIndexed(path)) {
+			return files.contains(path) || directories.contains(path);
+		}
+
+		return file.exists();
+	}
+
+	/**
+	 * Answer the distinct output roots, excluding any that are nested within another.
+	 */
+	private List<Path> findRoots() {
+		List<Path> candidates = new ArrayList<>();
+
+		for (Recording recording : recordings) {
+			String output = recording.getOption("output");
+
+			if (output != null && !output.isEmpty()) {
+				try {
+					Path root = getRoot(output);
+
+					if (root != null && !candidates.contains(root)) {
+						candidates.add(root);
+					}
+				} catch (InvalidPathException e) {
+					// leave such paths to the file system
+				}
+			}
+		}
+
+		List<Path> result = new ArrayList<>(candidates);
+
+		result.removeIf(root -> candidates.stream() // <br/>
+				.anyMatch(other -> !other.equals(root) && root.startsWith(other)));
+
+		return result;
+	}
+
+	private synchronized List<Path> getRoots() {
+		if (roots == null) {
+			roots = scan();
+		}
+
+		return roots;
+	}
+
+	public boolean isDirectory(File folder) {
+		Path path = normalize(folder);
+
+		if (isIndexed(path)) {
+			return directories.contains(path);
+		}
+
+		return folder.isDirectory();
+	}
+
+	private boolean isIndexed(Path path) {
+		return getRoots().stream().anyMatch(path::startsWith);
+	}
+
+	private List<Path> scan() {
+		List<Path> found = findRoots();
+
+		found.parallelStream().forEach(this::walk);
+
+		return found;
+	}
+
+	private void walk(Path root) {
+		if (!Files.isDirectory(root)) {
+			return;
+		}
+
+		FileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				directories.add(dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+
+		};
+
+		try {
+			// roots and folders are often links (e.g. to network shares)
+			Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
+		} catch (IOException e) {
+			System.err.println("Failed to index " + root + ": " + e.getLocalizedMessage());
+		}
+
+		addDirectories(root);
+	}
+
+}
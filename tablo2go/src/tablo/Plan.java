@@ -0,0 +1,226 @@
+package tablo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.simple.JSONValue;
+
+/**
+ * The resolved jobs of a scan, saved with '-plan' so they can be run later
+ * with '-execute', without listing the Tablos or fetching metadata. Each job
+ * records the Tablo and airing, the target file, the options of the recording
+ * rule (which determine the ffmpeg options) and the attributes of the airing.
+ */
+public final class Plan {
+
+	/**
+	 * A recording rule restored from a plan. Options which were not in effect
+	 * when the plan was made are taken from the current configuration.
+	 */
+	private static final class PlannedRecording implements Recording {
+
+		private final Map<String, String> defaults;
+
+		private final Map<String, String> options;
+
+		PlannedRecording(Map<String, String> options, Map<String, String> defaults) {
+			super();
+			this.defaults = defaults;
+			this.options = options;
+		}
+
+		@Override
+		public String getOption(String name) {
+			String value = options.get(name);
+
+			return value != null ? value : defaults.get(name);
+		}
+
+		@Override
+		public Map<String, String> getOptions() {
+			Map<String, String> result = new TreeMap<>(defaults);
+
+			result.putAll(options);
+
+			return Collections.unmodifiableMap(result);
+		}
+
+	}
+
+	private static final String KeyAiring = "airing";
+
+	private static final String KeyAlternates = "alternates";
+
+	private static final String KeyAttributes = "attributes";
+
+	private static final String KeyMode = "mode";
+
+	private static final String KeyOptions = "options";
+
+	private static final String KeyOutput = "output";
+
+	private static final String KeyRule = "rule";
+
+	private static final String KeyTablo = "tablo";
+
+	private static Map<String, Object> describe(Job job) {
+		Map<String, Object> entry = new LinkedHashMap<>();
+		Map<String, String> options = new TreeMap<>(job.getRecording().getOptions());
+		File output = job.getHandler().getTargetFile(job.getRecording());
+		List<Object> alternates = new ArrayList<>();
+
+		// these name the plan, not the work
+		options.remove("execute");
+		options.remove("plan");
+
+		for (Job alternate : job.getAlternates()) {
+			Map<String, Object> location = new LinkedHashMap<>();
+
+			location.put(KeyTablo, alternate.getTablo());
+			location.put(KeyAiring, alternate.getPath());
+			alternates.add(location);
+		}
+
+		entry.put(KeyTablo, job.getTablo());
+		entry.put(KeyAiring, job.getPath());
+		entry.put(KeyRule, Integer.valueOf(job.getIndex()));
+		entry.put(KeyMode, job.getMode().name().toLowerCase(Locale.ROOT));
+		entry.put(KeyOutput, output != null ? output.getAbsolutePath() : null);
+		entry.put(KeyOptions, options);
+		entry.put(KeyAttributes, new TreeMap<>(job.getHandler().getAttributes()));
+
+		if (!alternates.isEmpty()) {
+			entry.put(KeyAlternates, alternates);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Answer whether the output of the given plan entry has already been saved.
+	 * An empty file is the placeholder left by an interrupted run, and is removed.
+	 */
+	private static boolean isCompleted(String output) {
+		if (output == null) {
+			return false;
+		}
+
+		File file = new File(output);
+
+		if (file.length() > 0) {
+			return true;
+		}
+
+		file.delete();
+
+		return false;
+	}
+
+	/**
+	 * Read the jobs of the given plan, except those whose output exists.
+	 *
+	 * @param defaults the options of the current configuration
+	 * @param ledger where to record saved airings, or null
+	 */
+	public static List<Job> read(File file, Map<String, String> defaults, OutputIndex outputs,
+			BandwidthLimits limits, Ledger ledger) throws IOException {
+		Object plan;
+
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+			plan = Util.readJSON(reader);
+		}
+
+		if (!(plan instanceof List<?>)) {
+			throw new IOException("Not a plan: " + file);
+		}
+
+		List<Job> jobs = new ArrayList<>();
+
+		for (Object item : (List<?>) plan) {
+			Map<?, ?> entry = (Map<?, ?>) item;
+			String tablo = (String) entry.get(KeyTablo);
+			String airing = (String) entry.get(KeyAiring);
+			String output = (String) entry.get(KeyOutput);
+
+			if (isCompleted(output)) {
+				System.out.println("Skipping completed " + output);
+				continue;
+			}
+
+			MediaHandler handler = MediaHandler.newInstance(airing, toStrings(entry.get(KeyAttributes)));
+			Recording recording = new PlannedRecording(toStrings(entry.get(KeyOptions)), defaults);
+			int index = ((Number) entry.get(KeyRule)).intValue();
+			Job job = handler != null ? handler.newJob(index, tablo, airing, recording, outputs, limits, ledger)
+					: null;
+
+			if (job == null) {
+				System.err.println("Ignoring plan entry for " + airing);
+				continue;
+			}
+
+			Object alternates = entry.get(KeyAlternates);
+
+			if (alternates instanceof List<?>) {
+				for (Object alternate : (List<?>) alternates) {
+					Map<?, ?> location = (Map<?, ?>) alternate;
+
+					job.addAlternate(job.copyAt((String) location.get(KeyTablo), (String) location.get(KeyAiring)));
+				}
+			}
+
+			jobs.add(job);
+		}
+
+		return jobs;
+	}
+
+	private static Map<String, String> toStrings(Object object) {
+		Map<String, String> map = new TreeMap<>();
+
+		if (object instanceof Map<?, ?>) {
+			((Map<?, ?>) object).forEach((key, value) -> {
+				if (key != null && value != null) {
+					map.put(key.toString(), value.toString());
+				}
+			});
+		}
+
+		return map;
+	}
+
+	/**
+	 * Write the given jobs, in order, to the given file, one job per line.
+	 */
+	public static void write(File file, List<Job> jobs) throws IOException {
+		try (PrintWriter out = new PrintWriter(
+				new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			out.println("[");
+
+			for (int i = 0, count = jobs.size(); i < count; ++i) {
+				out.print(JSONValue.toJSONString(describe(jobs.get(i))));
+				out.println(i + 1 < count ? "," : "");
+			}
+
+			out.println("]");
+
+			if (out.checkError()) {
+				throw new IOException("Failed to write " + file);
+			}
+		}
+	}
+
+}
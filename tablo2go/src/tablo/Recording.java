@@ -1,7 +1,14 @@
 package tablo;
 
+import java.util.Map;
+
 public interface Recording {
 
 	String getOption(String name);
 
+	/**
+	 * @return all options in effect, including inherited ones
+	 */
+	Map<String, String> getOptions();
+
 }
@@ -0,0 +1,108 @@
+package tablo;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the recording rules can select, worked out before any airing is
+ * examined. The type of an airing is known from its path, so airings of
+ * types no rule selects can be passed over without fetching metadata, and
+ * the rest can be examined in the order of the first rule which might
+ * select them. Likewise, when every TV rule names its series, episodes
+ * of other series can be passed over once the titles of the series are
+ * known.
+ */
+public final class RuleIndex {
+
+	/**
+	 * Whether some TV rule selects any series.
+	 */
+	private boolean anySeries;
+
+	/**
+	 * The index of the first rule selecting each type (in lower case).
+	 */
+	private final Map<String, Integer> firstRules;
+
+	/**
+	 * The series named by TV rules (in lower case).
+	 */
+	private final Set<String> seriesNames;
+
+	public RuleIndex(List<Recording> recordings) {
+		super();
+		this.anySeries = false;
+		this.firstRules = new HashMap<>();
+		this.seriesNames = new HashSet<>();
+
+		for (int index = 0, count = recordings.size(); index < count; ++index) {
+			String type = recordings.get(index).getOption("type");
+
+			if (type != null) {
+				firstRules.putIfAbsent(type.toLowerCase(Locale.ROOT), Integer.valueOf(index));
+
+				if (type.equalsIgnoreCase("TV")) {
+					String name = recordings.get(index).getOption("name");
+
+					if (name != null) {
+						seriesNames.add(name.toLowerCase(Locale.ROOT));
+					} else {
+						anySeries = true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answer whether some rule could select episodes of the series with
+	 * the given title.
+	 */
+	public boolean canSelectSeries(String title) {
+		return anySeries || seriesNames.contains(title.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Answer the index of the first rule which could select the airing at
+	 * the given path, or -1 if no rule can.
+	 */
+	public int firstRule(String airing) {
+		String type = MediaHandler.getType(airing);
+		Integer index = type != null ? firstRules.get(type.toLowerCase(Locale.ROOT)) : null;
+
+		return index != null ? index.intValue() : -1;
+	}
+
+	/**
+	 * Answer whether TV rules select only some series, so the episodes of
+	 * others need not be examined.
+	 */
+	public boolean isSeriesSelective() {
+		return !anySeries && !seriesNames.isEmpty();
+	}
+
+	/**
+	 * Answer the airings some rule could select, those the earliest rules
+	 * could select first (otherwise keeping the order given).
+	 */
+	public List<String> select(List<String> airings) {
+		List<String> selected = new ArrayList<>(airings.size());
+
+		for (String airing : airings) {
+			if (firstRule(airing) >= 0) {
+				selected.add(airing);
+			}
+		}
+
+		selected.sort(Comparator.comparingInt(this::firstRule));
+
+		return selected;
+	}
+
+}
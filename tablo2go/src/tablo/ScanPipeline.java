@@ -0,0 +1,259 @@
+package tablo;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds jobs in stages which run concurrently: listing the airings on each
+ * Tablo, then resolving each airing (from the cache or by fetching its
+ * metadata) and applying the recording rules. The stages are joined by
+ * bounded queues, so each runs only a little ahead of the next, and the
+ * first job is available as soon as it is found rather than after every
+ * Tablo has been scanned.
+ */
+public final class ScanPipeline {
+
+	/**
+	 * A listed airing, waiting to be resolved.
+	 */
+	private static final class Candidate {
+
+		final String airing;
+
+		final String ip;
+
+		Candidate(String ip, String airing) {
+			super();
+			this.airing = airing;
+			this.ip = ip;
+		}
+
+	}
+
+	/**
+	 * Lists the airings on a Tablo.
+	 */
+	public interface Lister {
+
+		List<String> list(String ip) throws IOException;
+
+	}
+
+	/**
+	 * Answers the job selected for an airing, or null.
+	 */
+	public interface Resolver {
+
+		Job resolve(String ip, String airing);
+
+	}
+
+	/**
+	 * Follows the last airing listed.
+	 */
+	private static final Candidate End = new Candidate(null, null);
+
+	/**
+	 * The capacity of the queues between stages.
+	 */
+	private static final int QueueCapacity = 64;
+
+	/**
+	 * The number of airings resolved concurrently.
+	 */
+	private static final int Resolvers = 4;
+
+	/**
+	 * Put the given item in the given queue, waiting for room. If interrupted,
+	 * the item is dropped and the thread is left interrupted.
+	 */
+	private static <T> void put(BlockingQueue<T> queue, T item) {
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void startThread(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private final BlockingQueue<Candidate> candidates;
+
+	/**
+	 * The Tablo of the first job found with each content, to recognize
+	 * copies on other Tablos.
+	 */
+	private final ConcurrentMap<String, String> contentTablos;
+
+	/**
+	 * The jobs found, followed by an empty value.
+	 */
+	private final BlockingQueue<Optional<Job>> jobs;
+
+	private final boolean keepDuplicates;
+
+	private final Lister lister;
+
+	/**
+	 * The number of Tablos still being listed.
+	 */
+	private final AtomicInteger listing;
+
+	private final Resolver resolver;
+
+	/**
+	 * The number of resolvers still running.
+	 */
+	private final AtomicInteger resolving;
+
+	private final Collection<String> tablos;
+
+	/**
+	 * @param tablos the addresses of the Tablos to scan
+	 * @param lister lists the airings on each Tablo
+	 * @param resolver answers the job, if any, for each airing
+	 * @param keepDuplicates whether to keep every copy of the same content
+	 *            (otherwise copies on Tablos other than the first found are skipped)
+	 */
+	public ScanPipeline(Collection<String> tablos, Lister lister, Resolver resolver, boolean keepDuplicates) {
+		super();
+		this.candidates = new ArrayBlockingQueue<>(QueueCapacity);
+		this.contentTablos = new ConcurrentHashMap<>();
+		this.jobs = new ArrayBlockingQueue<>(QueueCapacity);
+		this.keepDuplicates = keepDuplicates;
+		this.lister = lister;
+		this.listing = new AtomicInteger(tablos.size());
+		this.resolver = resolver;
+		this.resolving = new AtomicInteger(Resolvers);
+		this.tablos = tablos;
+	}
+
+	private void list(String ip) {
+		try {
+			List<String> airings = lister.list(ip);
+
+			for (String airing : airings) {
+				if (Thread.currentThread().isInterrupted()) {
+					break;
+				}
+
+				put(candidates, new Candidate(ip, airing));
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to read recordings from " + ip + ": " + e.getLocalizedMessage());
+		} finally {
+			if (listing.decrementAndGet() == 0) {
+				put(candidates, End);
+			}
+		}
+	}
+
+	private void resolve() {
+		try {
+			for (;;) {
+				Candidate candidate = candidates.take();
+
+				if (candidate == End) {
+					// leave it for the other resolvers
+					put(candidates, End);
+					break;
+				}
+
+				Job job;
+
+				try {
+					job = resolver.resolve(candidate.ip, candidate.airing);
+				} catch (RuntimeException e) {
+					System.err.println("Failed to resolve " + candidate.airing + ": " + e);
+					continue;
+				}
+
+				if (job == null) {
+					continue;
+				}
+
+				String key = job.getAiring().getContentKey();
+				String first = key != null ? contentTablos.putIfAbsent(key, job.getTablo()) : null;
+
+				if (!keepDuplicates && first != null && !first.equals(job.getTablo())) {
+					System.out.printf("Skipping duplicate %s on %s%n", job.getPath(), job.getTablo());
+					continue;
+				}
+
+				put(jobs, Optional.of(job));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (resolving.decrementAndGet() == 0) {
+				put(jobs, Optional.empty());
+			}
+		}
+	}
+
+	/**
+	 * Start scanning, answering the jobs as they are found. The iterator
+	 * blocks until the next job is found or the scan is complete.
+	 */
+	public Iterator<Job> start() {
+		if (tablos.isEmpty()) {
+			put(candidates, End);
+		}
+
+		for (String ip : tablos) {
+			startThread(() -> list(ip), "list " + ip);
+		}
+
+		for (int i = 0; i < Resolvers; ++i) {
+			startThread(this::resolve, "resolve " + i);
+		}
+
+		return new Iterator<Job>() {
+
+			private Optional<Job> next = null;
+
+			@Override
+			public boolean hasNext() {
+				if (next == null) {
+					try {
+						next = jobs.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						next = Optional.empty();
+					}
+				}
+
+				return next.isPresent();
+			}
+
+			@Override
+			public Job next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				Job job = next.get();
+
+				next = null;
+
+				return job;
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,92 @@
+package tablo;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * The policies for the order in which jobs are started.
+ */
+public enum Schedule implements Comparator<Job> {
+
+	/**
+	 * Oldest recordings first: those the Tablo is most likely to delete
+	 * to make room for new recordings.
+	 */
+	OLDEST {
+		@Override
+		public int compare(Job a, Job b) {
+			Instant timeA = a.getAiring().getAirTime();
+			Instant timeB = b.getAiring().getAirTime();
+			int result = Comparator.nullsLast(Comparator.<Instant> naturalOrder()).compare(timeA, timeB);
+
+			return result != 0 ? result : RULE.compare(a, b);
+		}
+	},
+
+	/**
+	 * In the order of the recording rules that select them (the default).
+	 */
+	RULE {
+		@Override
+		public int compare(Job a, Job b) {
+			int result = Integer.compare(a.getIndex(), b.getIndex());
+
+			if (result == 0) {
+				result = Integer.compare(a.getPath().length(), b.getPath().length());
+			}
+
+			if (result == 0) {
+				result = a.getPath().compareTo(b.getPath());
+			}
+
+			return result;
+		}
+	},
+
+	/**
+	 * Smallest recordings first, to complete the most files per hour.
+	 */
+	SHORTEST {
+		@Override
+		public int compare(Job a, Job b) {
+			int result = Long.compare(sizeOf(a), sizeOf(b));
+
+			return result != 0 ? result : RULE.compare(a, b);
+		}
+	};
+
+	/**
+	 * Answer the policy with the given name; the default policy is answered
+	 * if the name is null or empty.
+	 *
+	 * @throws IllegalArgumentException if the name is not recognized
+	 */
+	public static Schedule fromOption(String name) {
+		if (name == null || name.trim().isEmpty()) {
+			return RULE;
+		}
+
+		try {
+			return valueOf(name.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown schedule: " + name, e);
+		}
+	}
+
+	/**
+	 * Answer the size of the airing of the given job, ordering airings
+	 * of unknown size last.
+	 */
+	static long sizeOf(Job job) {
+		long size = job.getAiring().getSize();
+
+		return size != Airing.UNKNOWN ? size : Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+
+}
@@ -0,0 +1,393 @@
+package tablo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs tasks concurrently, limiting both the total number of running tasks
+ * (each of which is a network download) and, separately, the number of
+ * running tasks that encode video. Tasks that only copy streams are I/O
+ * bound and limited only by the former.
+ *
+ * The limit on encoding tasks adapts: while encoding tasks are waiting and
+ * the system load average leaves idle cores, the limit is raised; if the
+ * combined speed reported by the running ffmpeg processes does not improve
+ * as a result, or the system is overloaded, the limit is lowered again.
+ */
+public final class TranscodeGovernor implements AutoCloseable {
+
+	public enum Mode {
+		/** The task copies streams without re-encoding. */
+		COPY,
+		/** The task decodes and/or encodes video. */
+		ENCODE
+	}
+
+	/**
+	 * Accepts progress reports from a running task.
+	 */
+	public interface Monitor {
+
+		/**
+		 * @return the number of cores the task may use
+		 */
+		default int getCores() {
+			return Runtime.getRuntime().availableProcessors();
+		}
+
+		/**
+		 * @param speed the speed of processing relative to real-time
+		 */
+		void reportSpeed(double speed);
+
+	}
+
+	public interface Task {
+
+		Mode getMode();
+
+		void run(Monitor monitor);
+
+	}
+
+	private static final class TaskMonitor implements Monitor {
+
+		private final int cores;
+
+		private volatile double speed;
+
+		TaskMonitor(int cores) {
+			super();
+			this.cores = cores;
+			this.speed = 0.0;
+		}
+
+		@Override
+		public int getCores() {
+			return cores;
+		}
+
+		@Override
+		public void reportSpeed(double value) {
+			speed = value;
+		}
+
+	}
+
+	/**
+	 * How often, in seconds, the limit on encoding tasks is reconsidered.
+	 */
+	private static final long AdjustInterval = 15;
+
+	private static final Monitor IgnoreProgress = speed -> {
+		// nothing
+	};
+
+	private static final Pattern SpeedPattern = Pattern.compile("speed=\\s*([\\d.]+)x");
+
+	/**
+	 * Run the given task so that its failure doesn't affect the others.
+	 */
+	private static void runIsolated(Task task, Monitor monitor) {
+		try {
+			task.run(monitor);
+		} catch (RuntimeException e) {
+			System.err.println("Task failed: " + e);
+		}
+	}
+
+	/**
+	 * Consume the output of an ffmpeg process started with '-progress pipe:1'
+	 * in a background thread, passing the reported speed to the given monitor.
+	 */
+	public static void watchProgress(InputStream progress, Monitor monitor) {
+		Thread reader = new Thread(() -> {
+			try (BufferedReader lines = new BufferedReader(new InputStreamReader(progress, StandardCharsets.UTF_8))) {
+				String line;
+
+				while ((line = lines.readLine()) != null) {
+					Matcher matcher = SpeedPattern.matcher(line);
+
+					if (matcher.matches()) {
+						monitor.reportSpeed(Double.parseDouble(matcher.group(1)));
+					}
+				}
+			} catch (IOException | NumberFormatException e) {
+				// progress is only advisory
+			}
+		}, "progress");
+
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private final ScheduledExecutorService adjuster;
+
+	private final int cores;
+
+	private final boolean debug;
+
+	private int encodeLimit;
+
+	private int encodesRunning;
+
+	private int encodesWaiting;
+
+	/**
+	 * Whether tasks may still be added to those pending, by feed().
+	 */
+	private boolean feeding;
+
+	/**
+	 * The number of adjustment intervals to wait before reconsidering the limit.
+	 */
+	private int hold;
+
+	/**
+	 * The combined speed of encoding tasks before the limit was last raised,
+	 * or NaN if the limit was not just raised.
+	 */
+	private double lastThroughput;
+
+	private final int maxTasks;
+
+	private final Set<TaskMonitor> monitors;
+
+	private final OperatingSystemMXBean system;
+
+	private int tasksRunning;
+
+	/**
+	 * @param maxTasks the maximum number of tasks to run concurrently
+	 * @param debug whether to report changes to the limit on encoding tasks
+	 */
+	public TranscodeGovernor(int maxTasks, boolean debug) {
+		super();
+		this.adjuster = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "governor");
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+		this.cores = Runtime.getRuntime().availableProcessors();
+		this.debug = debug;
+		this.encodeLimit = Math.max(1, cores / 4);
+		this.encodesRunning = 0;
+		this.encodesWaiting = 0;
+		this.feeding = false;
+		this.hold = 0;
+		this.lastThroughput = Double.NaN;
+		this.maxTasks = Math.max(1, maxTasks);
+		this.monitors = ConcurrentHashMap.newKeySet();
+		this.system = ManagementFactory.getOperatingSystemMXBean();
+		this.tasksRunning = 0;
+
+		if (this.maxTasks > 1) {
+			adjuster.scheduleWithFixedDelay(this::adjust, AdjustInterval, AdjustInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	private synchronized void adjust() {
+		double load = system.getSystemLoadAverage(); // negative if unavailable
+		double throughput = monitors.stream().mapToDouble(monitor -> monitor.speed).sum();
+		int oldLimit = encodeLimit;
+
+		if (!Double.isNaN(lastThroughput)) {
+			// the limit was just raised: keep the change only if it helped
+			if (throughput < lastThroughput * 1.05 && encodeLimit > 1) {
+				encodeLimit -= 1;
+				hold = 4;
+			}
+
+			lastThroughput = Double.NaN;
+		} else if (hold > 0) {
+			hold -= 1;
+		} else if (load > cores * 1.25 && encodeLimit > 1) {
+			encodeLimit -= 1;
+			hold = 2;
+		} else if (encodesWaiting > 0 && encodesRunning >= encodeLimit // <br/>
+				&& load < cores * 0.9 && encodeLimit < cores) {
+			lastThroughput = throughput;
+			encodeLimit += 1;
+		}
+
+		if (encodeLimit != oldLimit) {
+			if (debug) {
+				System.out.printf("Encoding task limit %s to %d (load %.2f, combined speed %.2fx)%n", // <br/>
+						encodeLimit > oldLimit ? "raised" : "lowered", Integer.valueOf(encodeLimit), // <br/>
+						Double.valueOf(load), Double.valueOf(throughput));
+			}
+
+			notifyAll();
+		}
+	}
+
+	private boolean canStart(Mode mode) {
+		return tasksRunning < maxTasks && (mode != Mode.ENCODE || encodesRunning < encodeLimit);
+	}
+
+	@Override
+	public void close() {
+		adjuster.shutdownNow();
+	}
+
+	/**
+	 * Start the pending tasks, preferring their order, but starting a later
+	 * task when an earlier one must wait for its kind of capacity. Returns
+	 * when all tasks have completed and no more are being fed.
+	 */
+	private void dispatch(LinkedList<Task> pending) {
+		ExecutorService executor = Executors.newFixedThreadPool(maxTasks);
+
+		try {
+			synchronized (this) {
+				encodesWaiting += (int) pending.stream().filter(task -> task.getMode() == Mode.ENCODE).count();
+
+				while (feeding || !pending.isEmpty() || tasksRunning > 0) {
+					for (Task task : pending) {
+						if (tasksRunning >= maxTasks) {
+							break;
+						}
+
+						Mode mode = task.getMode();
+
+						if (canStart(mode)) {
+							pending.remove(task);
+							start(executor, task, mode);
+							notifyAll(); // feed() may be waiting for room
+							break; // the iterator is no longer valid
+						}
+					}
+
+					if (tasksRunning >= maxTasks || pending.stream().noneMatch(task -> canStart(task.getMode()))) {
+						wait();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Run the tasks answered by the given iterator, which may block until
+	 * each is available. Only a few tasks are taken ahead of those running,
+	 * so a slow consumer holds back the producer; even when tasks run one at
+	 * a time, the next is taken while one runs (so its playlist may be
+	 * requested ahead of time). Returns when all tasks have completed.
+	 */
+	public void execute(Iterator<? extends Task> tasks) {
+		LinkedList<Task> pending = new LinkedList<>();
+		Thread feeder = new Thread(() -> feed(tasks, pending), "tasks");
+
+		synchronized (this) {
+			feeding = true;
+		}
+
+		feeder.setDaemon(true);
+		feeder.start();
+		dispatch(pending);
+	}
+
+	/**
+	 * Run the given tasks, preferring the order given, but starting a later
+	 * task when an earlier one must wait for its kind of capacity. Returns
+	 * when all tasks have completed.
+	 */
+	public void execute(List<? extends Task> tasks) {
+		if (maxTasks == 1) {
+			tasks.forEach(task -> runIsolated(task, IgnoreProgress));
+			return;
+		}
+
+		dispatch(new LinkedList<>(tasks));
+	}
+
+	/**
+	 * Move tasks from the given iterator to those pending, keeping no more
+	 * than maxTasks waiting to start.
+	 */
+	private void feed(Iterator<? extends Task> tasks, LinkedList<Task> pending) {
+		try {
+			while (tasks.hasNext()) {
+				Task task = tasks.next();
+
+				synchronized (this) {
+					while (pending.size() >= maxTasks) {
+						wait();
+					}
+
+					pending.add(task);
+
+					if (task.getMode() == Mode.ENCODE) {
+						encodesWaiting += 1;
+					}
+
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			System.err.println("Failed to find more tasks: " + e);
+		} finally {
+			synchronized (this) {
+				feeding = false;
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void finished(Mode mode, TaskMonitor monitor) {
+		tasksRunning -= 1;
+
+		if (mode == Mode.ENCODE) {
+			encodesRunning -= 1;
+			monitors.remove(monitor);
+		}
+
+		notifyAll();
+	}
+
+	private void start(ExecutorService executor, Task task, Mode mode) {
+		// encoding tasks share the cores with as many others as may run
+		int share = mode == Mode.ENCODE ? Math.max(1, cores / Math.min(maxTasks, encodeLimit)) : cores;
+		TaskMonitor monitor = new TaskMonitor(share);
+
+		tasksRunning += 1;
+
+		if (mode == Mode.ENCODE) {
+			encodesRunning += 1;
+			encodesWaiting -= 1;
+			monitors.add(monitor);
+		}
+
+		executor.execute(() -> {
+			try {
+				runIsolated(task, monitor);
+			} finally {
+				finished(mode, monitor);
+			}
+		});
+	}
+
+}
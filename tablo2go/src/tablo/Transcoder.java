@@ -0,0 +1,22 @@
+package tablo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Converts an MPEG transport stream to an MP4 file.
+ */
+public interface Transcoder {
+
+	/**
+	 * Read the given transport stream and write it to the output file,
+	 * with the given metadata.
+	 *
+	 * @throws tablo.remux.UnsupportedStreamException if the input cannot
+	 *         be handled (before any output is written)
+	 */
+	void transcode(InputStream input, File output, Map<String, String> metadata) throws IOException;
+
+}
@@ -1,6 +1,7 @@
 package tablo;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -10,8 +11,7 @@ import java.io.Reader;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -20,7 +20,6 @@ import java.time.format.DateTimeParseException;
 import java.time.format.SignStyle;
 import java.time.temporal.ChronoField;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -35,11 +34,54 @@ import java.util.stream.Collectors;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import tablo.io.Connections;
 import tablo.io.MediaInputStream;
+import tablo.util.Events;
+import tablo.util.JsonProjection;
+import tablo.util.Memo;
 
 public final class Util {
 
-	private static final DateFormat AirTimeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mmX");
+	/**
+	 * Counts the bytes read from a stream.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+
+		long count;
+
+		CountingInputStream(InputStream input) {
+			super(input);
+			this.count = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = super.read();
+
+			if (value >= 0) {
+				count += 1;
+			}
+
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int bytes = super.read(buffer, offset, length);
+
+			if (bytes > 0) {
+				count += bytes;
+			}
+
+			return bytes;
+		}
+
+	}
+
+	/**
+	 * The JSON documents read during this run, by URL.
+	 */
+	private static final Memo<String, Object> Documents = new Memo<>(256);
 
 	private static final DateTimeFormatter LocalDateTime = new DateTimeFormatterBuilder() // <br/>
 			.parseCaseInsensitive() // <br/>
@@ -54,6 +96,11 @@ public final class Util {
 			.appendValue(ChronoField.MINUTE_OF_HOUR, 2) // <br/>
 			.toFormatter();
 
+	/**
+	 * The fields read from JSON documents during this run, by projection and URL.
+	 */
+	private static final Memo<String, String[]> Projections = new Memo<>(256);
+
 	public static boolean containsIgnoreCase(Collection<String> values, String search) {
 		Pattern pattern = Pattern.compile(search, Pattern.CASE_INSENSITIVE | Pattern.LITERAL);
 		Predicate<String> finder = value -> pattern.matcher(value.toString()).find();
@@ -72,6 +119,14 @@ public final class Util {
 		}
 	}
 
+	public static String formatAirTime(Instant time) {
+		if (time == null) {
+			return "";
+		}
+
+		return time.atZone(ZoneId.systemDefault()).format(LocalDateTime);
+	}
+
 	public static String formatAirTime(String time) {
 		Objects.requireNonNull(time);
 
@@ -84,24 +139,23 @@ public final class Util {
 		}
 	}
 
-	public static Reader openReader(URL url) throws IOException {
-		return new InputStreamReader(url.openStream(), StandardCharsets.UTF_8);
+	/**
+	 * Answer the number of JSON requests avoided because the document was
+	 * read (or being read) already.
+	 */
+	public static long getMemoHits() {
+		return Documents.getHits() + Projections.getHits();
 	}
 
-	public static Calendar parseAirTime(String time) {
-		return parseTime(time, AirTimeFormat);
+	/**
+	 * Answer the number of JSON documents requested.
+	 */
+	public static long getMemoMisses() {
+		return Documents.getMisses() + Projections.getMisses();
 	}
 
-	public static Calendar parseTime(String time, DateFormat format) {
-		try {
-			if (time != null) {
-				return new Calendar.Builder().setInstant(format.parse(time)).build();
-			}
-		} catch (java.text.ParseException e) {
-			// ignore
-		}
-
-		return null;
+	public static Reader openReader(URL url) throws IOException {
+		return new InputStreamReader(Connections.openStream(url), StandardCharsets.UTF_8);
 	}
 
 	public static void printHeaderFields(PrintStream out, URLConnection connection) {
@@ -166,10 +220,52 @@ public final class Util {
 		}
 	}
 
+	/**
+	 * Answer the JSON document at the given URL. Each document is requested
+	 * once per run (while recently used), even by concurrent callers, so
+	 * the result must not be modified.
+	 */
 	public static Object readJSON(URL url) throws IOException {
-		try (Reader reader = openReader(url)) {
-			return readJSON(reader);
-		}
+		return Documents.get(url.toExternalForm(), key -> {
+			// a response cut short by a read timeout is requested again;
+			// each attempt makes a single request so retries don't nest
+			return Connections.retry(() -> {
+				InputStream input = Connections.open(url).getInputStream();
+
+				try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+					return readJSON(reader);
+				}
+			});
+		});
+	}
+
+	/**
+	 * Answer the values of the fields of the given projection
+	 * in the JSON document at the given URL, requested as readJSON(URL).
+	 */
+	public static String[] readJSON(URL url, JsonProjection projection) throws IOException {
+		String key = projection.getPaths() + " " + url.toExternalForm();
+		Events.MetadataFetch event = new Events.MetadataFetch();
+
+		event.begin();
+		event.cacheHit = true;
+
+		String[] values = Projections.get(key, k -> Connections.retry(() -> {
+			CountingInputStream input = new CountingInputStream(Connections.open(url).getInputStream());
+
+			try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+				return projection.read(reader);
+			} finally {
+				event.bytes += input.count;
+				event.cacheHit = false;
+			}
+		}));
+
+		event.tablo = url.getHost();
+		event.airing = url.getPath();
+		Events.commit(event);
+
+		return values.clone();
 	}
 
 	public static List<Object> select(Object object, String path) {
@@ -0,0 +1,266 @@
+package tablo.io;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnknownServiceException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens HTTP connections with connect and read timeouts, retries failed
+ * requests after a jittered exponential backoff, and hedges slow requests
+ * by sending a second copy.
+ */
+public final class Connections {
+
+	/**
+	 * A request which may be sent more than once.
+	 */
+	public interface Request<T> {
+
+		T send() throws IOException;
+
+	}
+
+	/**
+	 * The initial backoff, in milliseconds, before a failed request is retried.
+	 */
+	private static final long BackoffBase = 500;
+
+	/**
+	 * The longest backoff, in milliseconds.
+	 */
+	private static final long BackoffLimit = 30_000;
+
+	/**
+	 * The number of requests which must have completed before the
+	 * latency of others is judged.
+	 */
+	private static final int HedgeMinimumSamples = 20;
+
+	private static final ExecutorService Hedger = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "hedge");
+
+		thread.setDaemon(true);
+
+		return thread;
+	});
+
+	/**
+	 * The most recent latencies, in nanoseconds, of hedged requests.
+	 */
+	private static final long[] Latencies = new long[128];
+
+	private static volatile int connectTimeout = 10_000;
+
+	private static int latencyCount = 0;
+
+	private static volatile int readTimeout = 30_000;
+
+	private static volatile int retries = 3;
+
+	/**
+	 * Wait before retrying a request which has failed the given number of times.
+	 */
+	private static void backoff(int failures) throws InterruptedIOException {
+		long limit = Math.min(BackoffLimit, BackoffBase << Math.min(failures, 16));
+
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(limit / 2, limit + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Configure all subsequent requests.
+	 *
+	 * @param connectMillis how long to wait for a connection
+	 * @param readMillis how long to wait for data once connected
+	 * @param retryCount how many times to retry a failed request
+	 */
+	public static void configure(int connectMillis, int readMillis, int retryCount) {
+		connectTimeout = connectMillis;
+		readTimeout = readMillis;
+		retries = retryCount;
+	}
+
+	/**
+	 * Dispose of the result of a hedged request which lost the race, once it
+	 * arrives. (Cancelling the request wouldn't stop it, but would prevent
+	 * its result from being closed.)
+	 */
+	private static void discard(Future<? extends Closeable> attempt) {
+		Hedger.execute(() -> {
+			try {
+				closeQuietly(attempt.get());
+			} catch (Exception e) {
+				// ignore
+			}
+		});
+	}
+
+	/**
+	 * @return the read timeout in milliseconds
+	 */
+	public static int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Send the given request; if it takes longer than the 95th percentile
+	 * of recent requests, send it again and use whichever response arrives
+	 * first, closing the other.
+	 */
+	public static <T extends Closeable> T hedged(Request<T> request) throws IOException {
+		long threshold = latencyThreshold();
+
+		if (threshold <= 0) {
+			return timed(request);
+		}
+
+		CompletionService<T> completion = new ExecutorCompletionService<>(Hedger);
+		List<Future<T>> attempts = new ArrayList<>(2);
+		IOException failure = null;
+
+		attempts.add(completion.submit(() -> timed(request)));
+
+		try {
+			Future<T> done = completion.poll(threshold, TimeUnit.NANOSECONDS);
+
+			if (done == null) {
+				attempts.add(completion.submit(() -> timed(request)));
+			}
+
+			for (int outstanding = attempts.size(); outstanding > 0; --outstanding) {
+				if (done == null) {
+					done = completion.take();
+				}
+
+				try {
+					T result = done.get();
+
+					attempts.remove(done);
+					attempts.forEach(Connections::discard);
+
+					return result;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					IOException exception = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+
+					if (failure == null) {
+						failure = exception;
+					} else {
+						failure.addSuppressed(exception);
+					}
+				}
+
+				done = null;
+			}
+		} catch (InterruptedException e) {
+			attempts.forEach(Connections::discard);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		throw failure;
+	}
+
+	private static long latencyThreshold() {
+		long[] samples;
+
+		synchronized (Latencies) {
+			if (latencyCount < HedgeMinimumSamples) {
+				return 0;
+			}
+
+			samples = Arrays.copyOf(Latencies, Math.min(latencyCount, Latencies.length));
+		}
+
+		Arrays.sort(samples);
+
+		return samples[(int) Math.ceil(samples.length * 0.95) - 1];
+	}
+
+	/**
+	 * Answer a connection to the given URL, with the configured timeouts.
+	 */
+	public static URLConnection open(URL url) throws IOException {
+		URLConnection connection = url.openConnection();
+
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+
+		return connection;
+	}
+
+	/**
+	 * Answer the content of the given URL, retrying as configured.
+	 */
+	public static InputStream openStream(URL url) throws IOException {
+		return retry(() -> open(url).getInputStream());
+	}
+
+	private static void recordLatency(long nanos) {
+		synchronized (Latencies) {
+			Latencies[latencyCount % Latencies.length] = nanos;
+			latencyCount += 1;
+		}
+	}
+
+	/**
+	 * Send the given request, retrying after a backoff if it fails. Missing
+	 * resources, unsupported content and interruptions are not retried.
+	 */
+	public static <T> T retry(Request<T> request) throws IOException {
+		for (int failures = 0;; ++failures) {
+			try {
+				return request.send();
+			} catch (FileNotFoundException | UnknownServiceException e) {
+				throw e;
+			} catch (IOException e) {
+				boolean interrupted = e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException);
+
+				if (interrupted || failures >= retries) {
+					throw e;
+				}
+			}
+
+			backoff(failures);
+		}
+	}
+
+	private static <T> T timed(Request<T> request) throws IOException {
+		long start = System.nanoTime();
+		T result = request.send();
+
+		recordLatency(System.nanoTime() - start);
+
+		return result;
+	}
+
+}
@@ -1,15 +1,43 @@
 package tablo.io;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.UnknownServiceException;
+
+import tablo.util.Events;
 
 public final class MediaInputStream extends InputStream {
 
+	/**
+	 * Connect to the given URL, answering a MediaInputStream for a playlist.
+	 *
+	 * @param buffer whether to read video content fully before answering
+	 */
+	private static InputStream connect(URL url, boolean buffer) throws IOException {
+		URLConnection connection = Connections.open(url);
+		InputStream input = connection.getInputStream();
+		String contentType = connection.getContentType();
+
+		if (isPlaylist(contentType)) {
+			return new MediaInputStream(url, input);
+		} else if (!isVideo(contentType)) {
+			input.close();
+			throw new UnknownServiceException("Unsupported content-type: " + contentType);
+		} else if (buffer) {
+			try (InputStream content = input) {
+				return new ByteArrayInputStream(content.readAllBytes());
+			}
+		} else {
+			return input;
+		}
+	}
+
 	private static boolean isPlaylist(String contentType) {
 		return "application/x-mpegURL".equalsIgnoreCase(contentType)
 				|| "vnd.apple.mpegURL".equalsIgnoreCase(contentType);
@@ -20,18 +48,25 @@ public final class MediaInputStream extends InputStream {
 	}
 
 	public static InputStream open(URL url) throws IOException {
-		URLConnection connection = url.openConnection();
-		String contentType = connection.getContentType();
-		InputStream input = connection.getInputStream();
+		return Connections.retry(() -> connect(url, false));
+	}
 
-		if (isPlaylist(contentType)) {
-			return new MediaInputStream(url, input);
-		} else if (isVideo(contentType)) {
-			return input;
-		} else {
-			input.close();
-			throw new IOException("Unsupported content-type: " + contentType);
-		}
+	/**
+	 * Open a segment named in a playlist: each segment is read fully so
+	 * a stalled transfer can be retried, or hedged by a second request.
+	 */
+	private static InputStream openSegment(URL url) throws IOException {
+		Events.SegmentFetch event = new Events.SegmentFetch();
+
+		event.begin();
+
+		InputStream segment = Connections.retry(() -> Connections.hedged(() -> connect(url, true)));
+
+		event.url = url.toExternalForm();
+		event.bytes = segment.available();
+		Events.commit(event);
+
+		return segment;
 	}
 
 	/**
@@ -69,7 +104,6 @@ public final class MediaInputStream extends InputStream {
 		this.baseURL = url;
 		this.content = null;
 		this.playlist = new BufferedReader(new InputStreamReader(input, "UTF-8"));
-		openNext();
 	}
 
 	@Override
@@ -87,6 +121,23 @@ public final class MediaInputStream extends InputStream {
 		super.close();
 	}
 
+	/**
+	 * Open the first segment, unless the playlist has been read already
+	 * (segments are not fetched until they are needed, so a failed segment
+	 * isn't mistaken for a failure to open the playlist).
+	 *
+	 * @return whether there is a current segment
+	 */
+	private boolean openFirst() throws IOException {
+		if (playlist == null) {
+			return false;
+		}
+
+		openNext();
+
+		return content != null;
+	}
+
 	private void openNext() throws IOException {
 		if (content != null) {
 			content.close();
@@ -100,14 +151,14 @@ public final class MediaInputStream extends InputStream {
 				playlist.close();
 				playlist = null;
 			} else {
-				content = open(new URL(baseURL, entry));
+				content = openSegment(new URL(baseURL, entry));
 			}
 		}
 	}
 
 	@Override
 	public int read() throws IOException {
-		if (content == null) {
+		if (content == null && !openFirst()) {
 			throw new EOFException();
 		}
 
@@ -127,7 +178,7 @@ public final class MediaInputStream extends InputStream {
 
 	@Override
 	public int read(byte buffer[], int offset, int length) throws IOException {
-		if (content == null) {
+		if (content == null && !openFirst()) {
 			throw new EOFException();
 		}
 
@@ -0,0 +1,155 @@
+package tablo.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The segments of an HLS media playlist. When given a master playlist,
+ * the first variant stream is used.
+ */
+public final class Playlist {
+
+	public static final class Segment {
+
+		public final double duration;
+
+		public final URL url;
+
+		Segment(URL url, double duration) {
+			super();
+			this.duration = duration;
+			this.url = url;
+		}
+
+	}
+
+	/**
+	 * The largest difference, in seconds, between the durations of
+	 * corresponding segments of aligned playlists.
+	 */
+	private static final double AlignmentTolerance = 0.1;
+
+	private static final String TagDuration = "#EXTINF:";
+
+	private static final String TagVariant = "#EXT-X-STREAM-INF";
+
+	private static double parseDuration(String line) {
+		String value = line.substring(TagDuration.length());
+		int comma = value.indexOf(',');
+
+		if (comma >= 0) {
+			value = value.substring(0, comma);
+		}
+
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			return 0.0;
+		}
+	}
+
+	public static Playlist read(URL url) throws IOException {
+		List<Segment> segments = new ArrayList<>();
+
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(Connections.openStream(url), StandardCharsets.UTF_8))) {
+			double duration = 0.0;
+			boolean variant = false;
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				if ((line = line.trim()).isEmpty()) {
+					continue;
+				}
+
+				if (line.startsWith(TagDuration)) {
+					duration = parseDuration(line);
+				} else if (line.startsWith(TagVariant)) {
+					variant = true;
+				} else if (!line.startsWith("#")) {
+					URL entry = new URL(url, line);
+
+					if (variant) {
+						return read(entry);
+					}
+
+					segments.add(new Segment(entry, duration));
+					duration = 0.0;
+				}
+			}
+		}
+
+		return new Playlist(url, segments);
+	}
+
+	private final List<Segment> segments;
+
+	private final URL url;
+
+	private Playlist(URL url, List<Segment> segments) {
+		super();
+		this.segments = Collections.unmodifiableList(segments);
+		this.url = url;
+	}
+
+	/**
+	 * @return the total duration of all segments, in seconds
+	 */
+	public double getDuration() {
+		return segments.stream().mapToDouble(segment -> segment.duration).sum();
+	}
+
+	/**
+	 * @return the offset of the start of each segment, in seconds
+	 */
+	public double[] getSegmentTimes() {
+		double[] times = new double[segments.size()];
+		double time = 0.0;
+
+		for (int i = 0; i < times.length; ++i) {
+			times[i] = time;
+			time += segments.get(i).duration;
+		}
+
+		return times;
+	}
+
+	public List<Segment> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Answer whether the given playlist has the same number of segments as
+	 * this one, each with the same duration, as copies of the same broadcast
+	 * recorded on different devices should.
+	 */
+	public boolean isAlignedWith(Playlist other) {
+		List<Segment> others = other.segments;
+
+		if (segments.isEmpty() || segments.size() != others.size()) {
+			return false;
+		}
+
+		for (int i = 0, count = segments.size(); i < count; ++i) {
+			if (Math.abs(segments.get(i).duration - others.get(i).duration) > AlignmentTolerance) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the location of the media playlist
+	 */
+	public URL getURL() {
+		return url;
+	}
+
+}
@@ -0,0 +1,192 @@
+package tablo.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the segments of a recording which is available from several sources
+ * with aligned playlists, fetching successive segments from each source in
+ * turn and in parallel, and presenting them in order as a single stream.
+ */
+public final class StripedInputStream extends InputStream {
+
+	/**
+	 * Opens a segment of a source.
+	 */
+	public interface Opener {
+
+		InputStream open(URL segment) throws IOException;
+
+	}
+
+	public static final class Source {
+
+		final Opener opener;
+
+		final Playlist playlist;
+
+		public Source(Playlist playlist, Opener opener) {
+			super();
+			this.opener = opener;
+			this.playlist = playlist;
+		}
+
+	}
+
+	/**
+	 * The number of segments to fetch ahead from each source.
+	 */
+	private static final int Lookahead = 2;
+
+	private static byte[] readFully(InputStream input) throws IOException {
+		try (InputStream in = input) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream(1 << 20);
+
+			in.transferTo(data);
+
+			return data.toByteArray();
+		}
+	}
+
+	private byte[] current;
+
+	private final List<ExecutorService> fetchers;
+
+	private int nextSegment;
+
+	private final Queue<Future<byte[]>> pending;
+
+	private int position;
+
+	private final int segmentCount;
+
+	private final List<Source> sources;
+
+	/**
+	 * @param sources the sources; all playlists must have the same segments
+	 */
+	public StripedInputStream(List<Source> sources) {
+		super();
+		this.current = new byte[0];
+		this.fetchers = new ArrayList<>(sources.size());
+		this.nextSegment = 0;
+		this.pending = new ArrayDeque<>();
+		this.position = 0;
+		this.segmentCount = sources.get(0).playlist.getSegments().size();
+		this.sources = new ArrayList<>(sources);
+
+		for (int i = 0; i < sources.size(); ++i) {
+			fetchers.add(Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "stripe");
+
+				thread.setDaemon(true);
+
+				return thread;
+			}));
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		fetchers.forEach(ExecutorService::shutdownNow);
+		pending.clear();
+		super.close();
+	}
+
+	/**
+	 * Fetch the given segment from the given source, falling back
+	 * to the other sources if that fails.
+	 */
+	private byte[] fetch(int segment, int preferred) throws IOException {
+		IOException failure = null;
+
+		for (int i = 0, count = sources.size(); i < count; ++i) {
+			Source source = sources.get((preferred + i) % count);
+
+			try {
+				return readFully(source.opener.open(source.playlist.getSegments().get(segment).url));
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+
+		throw failure;
+	}
+
+	/**
+	 * Make the next segment current, answering false at the end.
+	 */
+	private boolean nextSegment() throws IOException {
+		while (pending.size() < sources.size() * Lookahead && nextSegment < segmentCount) {
+			int segment = nextSegment++;
+			int source = segment % sources.size();
+
+			pending.add(fetchers.get(source).submit(() -> fetch(segment, source)));
+		}
+
+		Future<byte[]> next = pending.poll();
+
+		if (next == null) {
+			return false;
+		}
+
+		try {
+			current = next.get();
+			position = 0;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		while (position >= current.length) {
+			if (!nextSegment()) {
+				return -1;
+			}
+		}
+
+		return current[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte buffer[], int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+
+		while (position >= current.length) {
+			if (!nextSegment()) {
+				return -1;
+			}
+		}
+
+		int count = Math.min(length, current.length - position);
+
+		System.arraycopy(current, position, buffer, offset, count);
+		position += count;
+
+		return count;
+	}
+
+}
@@ -0,0 +1,71 @@
+package tablo.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An input stream whose reads are limited by one or more token buckets.
+ */
+public final class ThrottledInputStream extends FilterInputStream {
+
+	/**
+	 * The most bytes read at once, so that the limits are applied smoothly.
+	 */
+	private static final int MaxRead = 64 * 1024;
+
+	private final List<TokenBucket> buckets;
+
+	public ThrottledInputStream(InputStream in, List<TokenBucket> buckets) {
+		super(in);
+		this.buckets = new ArrayList<>(buckets);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int byteValue = in.read();
+
+		if (byteValue >= 0) {
+			take(1);
+		}
+
+		return byteValue;
+	}
+
+	@Override
+	public int read(byte buffer[], int offset, int length) throws IOException {
+		int byteCount = in.read(buffer, offset, Math.min(length, MaxRead));
+
+		if (byteCount > 0) {
+			take(byteCount);
+		}
+
+		return byteCount;
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		long skipped = in.skip(Math.min(count, MaxRead));
+
+		if (skipped > 0) {
+			take((int) skipped);
+		}
+
+		return skipped;
+	}
+
+	private void take(int count) throws InterruptedIOException {
+		try {
+			for (TokenBucket bucket : buckets) {
+				bucket.take(count);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package tablo.io;
+
+/**
+ * Limits the average rate at which bytes are consumed, allowing bursts of
+ * up to one second's worth. The rate may be changed at any time; a rate of
+ * zero (or less) means the rate is unlimited.
+ */
+public final class TokenBucket {
+
+	private double available;
+
+	private long lastRefill;
+
+	private double rate;
+
+	/**
+	 * @param rate the permitted rate, in bytes per second
+	 */
+	public TokenBucket(double rate) {
+		super();
+		this.available = Math.max(0.0, rate);
+		this.lastRefill = System.nanoTime();
+		this.rate = rate;
+	}
+
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+
+		if (rate > 0) {
+			available = Math.min(rate, available + (now - lastRefill) * rate / 1e9);
+		} else {
+			available = 0.0;
+		}
+
+		lastRefill = now;
+	}
+
+	public synchronized void setRate(double rate) {
+		refill();
+		this.rate = rate;
+		notifyAll();
+	}
+
+	/**
+	 * Consume the given number of bytes, waiting as necessary to respect
+	 * the rate.
+	 */
+	public synchronized void take(int count) throws InterruptedException {
+		refill();
+
+		if (rate <= 0) {
+			return;
+		}
+
+		available -= count;
+
+		while (rate > 0 && available < 0) {
+			wait(Math.max(1, (long) Math.ceil(-available * 1000 / rate)));
+			refill();
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package tablo.remux;
+
+/**
+ * The configuration of an AAC stream, taken from an ADTS header, and the
+ * 'mp4a' sample entry which describes it.
+ */
+final class AacConfig implements Mp4Writer.SampleEntry {
+
+	/**
+	 * The number of samples (per channel) in each AAC frame.
+	 */
+	static final int FrameSamples = 1024;
+
+	private static final int[] SampleRates = { // <br/>
+			96000, 88200, 64000, 48000, 44100, 32000, // <br/>
+			24000, 22050, 16000, 12000, 11025, 8000, 7350 };
+
+	/**
+	 * Answer the length of the ADTS frame (including the header)
+	 * at the given offset.
+	 */
+	static int frameLength(byte[] data, int offset) {
+		return ((data[offset + 3] & 0x03) << 11) | ((data[offset + 4] & 0xFF) << 3) | ((data[offset + 5] & 0xFF) >>> 5);
+	}
+
+	/**
+	 * Answer the length of the header of the ADTS frame at the given offset.
+	 */
+	static int headerLength(byte[] data, int offset) {
+		return (data[offset + 1] & 0x01) != 0 ? 7 : 9;
+	}
+
+	/**
+	 * Answer whether an ADTS header starts at the given offset
+	 * (at least 7 bytes must be available).
+	 */
+	static boolean isHeader(byte[] data, int offset) {
+		return (data[offset] & 0xFF) == 0xFF && (data[offset + 1] & 0xF6) == 0xF0;
+	}
+
+	/**
+	 * Answer the configuration given by the ADTS header at the given offset.
+	 */
+	static AacConfig parse(byte[] data, int offset) throws UnsupportedStreamException {
+		int objectType = ((data[offset + 2] & 0xC0) >>> 6) + 1;
+		int rateIndex = (data[offset + 2] & 0x3C) >>> 2;
+		int channels = ((data[offset + 2] & 0x01) << 2) | ((data[offset + 3] & 0xC0) >>> 6);
+
+		if (rateIndex >= SampleRates.length) {
+			throw new UnsupportedStreamException("invalid AAC sampling frequency index " + rateIndex);
+		}
+
+		if (channels == 0) {
+			throw new UnsupportedStreamException("AAC channel configuration in stream");
+		}
+
+		if ((data[offset + 6] & 0x03) != 0) {
+			throw new UnsupportedStreamException("multiple AAC raw data blocks per ADTS frame");
+		}
+
+		return new AacConfig(objectType, rateIndex, channels);
+	}
+
+	private final int channels;
+
+	private final int objectType;
+
+	private final int rateIndex;
+
+	private AacConfig(int objectType, int rateIndex, int channels) {
+		super();
+		this.channels = channels;
+		this.objectType = objectType;
+		this.rateIndex = rateIndex;
+	}
+
+	@Override
+	public int getHeight() {
+		return 0;
+	}
+
+	int getSampleRate() {
+		return SampleRates[rateIndex];
+	}
+
+	@Override
+	public int getWidth() {
+		return 0;
+	}
+
+	@Override
+	public void write(BoxBuilder box) {
+		int specificInfo = (objectType << 11) | (rateIndex << 7) | (channels << 3);
+
+		box.start("mp4a");
+		box.zeros(6); // reserved
+		box.u16(1); // data reference index
+		box.zeros(8); // reserved
+		box.u16(channels);
+		box.u16(16); // sample size
+		box.zeros(4); // pre-defined and reserved
+		box.u32((getSampleRate() & 0xFFFF) << 16);
+
+		box.start("esds", 0, 0);
+		box.u8(0x03); // ES descriptor
+		box.u8(3 + (2 + 17) + (2 + 1));
+		box.u16(0); // ES ID
+		box.u8(0); // flags
+		box.u8(0x04); // decoder configuration descriptor
+		box.u8(13 + (2 + 2));
+		box.u8(0x40); // MPEG-4 audio
+		box.u8(0x15); // audio stream
+		box.zeros(3); // buffer size
+		box.u32(0); // maximum bit rate
+		box.u32(0); // average bit rate
+		box.u8(0x05); // decoder specific information
+		box.u8(2);
+		box.u16(specificInfo);
+		box.u8(0x06); // SL configuration descriptor
+		box.u8(1);
+		box.u8(0x02);
+		box.end();
+
+		box.end();
+	}
+
+}
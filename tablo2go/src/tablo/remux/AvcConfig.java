@@ -0,0 +1,344 @@
+package tablo.remux;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The H.264 parameter sets of a video stream, and the 'avc1' sample entry
+ * which describes them.
+ */
+final class AvcConfig implements Mp4Writer.SampleEntry {
+
+	/**
+	 * Reads the fields of a NAL unit (with emulation prevention removed).
+	 */
+	private static final class BitReader {
+
+		private final byte[] data;
+
+		private int position;
+
+		BitReader(byte[] data) {
+			super();
+			this.data = data;
+			this.position = 0;
+		}
+
+		int bit() throws UnsupportedStreamException {
+			if (position >= data.length * 8) {
+				throw new UnsupportedStreamException("truncated sequence parameter set");
+			}
+
+			int value = (data[position >>> 3] >>> (7 - (position & 7))) & 1;
+
+			position += 1;
+
+			return value;
+		}
+
+		int bits(int count) throws UnsupportedStreamException {
+			int value = 0;
+
+			for (int i = 0; i < count; ++i) {
+				value = (value << 1) | bit();
+			}
+
+			return value;
+		}
+
+		int se() throws UnsupportedStreamException {
+			int value = ue();
+
+			return (value & 1) != 0 ? (value + 1) / 2 : -(value / 2);
+		}
+
+		void skipScalingList(int size) throws UnsupportedStreamException {
+			int last = 8;
+			int next = 8;
+
+			for (int i = 0; i < size && next != 0; ++i) {
+				next = (last + se() + 256) % 256;
+				last = next != 0 ? next : last;
+			}
+		}
+
+		int ue() throws UnsupportedStreamException {
+			int zeros = 0;
+
+			while (bit() == 0) {
+				if (++zeros > 31) {
+					throw new UnsupportedStreamException("invalid exp-Golomb code");
+				}
+			}
+
+			return (1 << zeros) - 1 + bits(zeros);
+		}
+
+	}
+
+	static final int TypeAccessUnitDelimiter = 9;
+
+	static final int TypeIdr = 5;
+
+	static final int TypePps = 8;
+
+	static final int TypeSps = 7;
+
+	/**
+	 * Answer the NAL units of the given Annex B byte stream.
+	 */
+	static List<byte[]> splitNalUnits(byte[] data) {
+		List<byte[]> units = new ArrayList<>();
+		int start = -1;
+
+		for (int i = 0; i + 2 < data.length;) {
+			if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+				if (start >= 0) {
+					units.add(trimUnit(data, start, i));
+				}
+
+				i += 3;
+				start = i;
+			} else {
+				++i;
+			}
+		}
+
+		if (start >= 0 && start < data.length) {
+			units.add(trimUnit(data, start, data.length));
+		}
+
+		units.removeIf(unit -> unit.length == 0);
+
+		return units;
+	}
+
+	/**
+	 * Answer the given range without trailing zero bytes
+	 * (which belong to the next start code).
+	 */
+	private static byte[] trimUnit(byte[] data, int start, int end) {
+		while (end > start && data[end - 1] == 0) {
+			--end;
+		}
+
+		return Arrays.copyOfRange(data, start, end);
+	}
+
+	private static byte[] unescape(byte[] unit) {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(unit.length);
+		int zeros = 0;
+
+		for (byte value : unit) {
+			if (zeros >= 2 && value == 3) {
+				zeros = 0;
+				continue;
+			}
+
+			zeros = value == 0 ? zeros + 1 : 0;
+			raw.write(value);
+		}
+
+		return raw.toByteArray();
+	}
+
+	private int bitDepthChroma;
+
+	private int bitDepthLuma;
+
+	private int chromaFormat;
+
+	private int height;
+
+	private byte[] pps;
+
+	private byte[] sps;
+
+	private int width;
+
+	AvcConfig() {
+		super();
+		this.bitDepthChroma = 8;
+		this.bitDepthLuma = 8;
+		this.chromaFormat = 1;
+		this.height = 0;
+		this.pps = null;
+		this.sps = null;
+		this.width = 0;
+	}
+
+	/**
+	 * Remember the given parameter set, if it is the first of its kind.
+	 */
+	void accept(byte[] unit) throws UnsupportedStreamException {
+		int type = unit[0] & 0x1F;
+
+		if (type == TypeSps && sps == null) {
+			parseSps(unit);
+			sps = unit;
+		} else if (type == TypePps && pps == null) {
+			pps = unit;
+		}
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	boolean isComplete() {
+		return sps != null && pps != null;
+	}
+
+	private void parseSps(byte[] unit) throws UnsupportedStreamException {
+		BitReader reader = new BitReader(unescape(unit));
+
+		reader.bits(8); // NAL header
+
+		int profile = reader.bits(8);
+
+		reader.bits(16); // constraints and level
+		reader.ue(); // seq_parameter_set_id
+
+		boolean separateColourPlanes = false;
+
+		switch (profile) {
+		case 44:
+		case 83:
+		case 86:
+		case 100:
+		case 110:
+		case 118:
+		case 122:
+		case 128:
+		case 134:
+		case 135:
+		case 138:
+		case 139:
+		case 244:
+			chromaFormat = reader.ue();
+
+			if (chromaFormat == 3) {
+				separateColourPlanes = reader.bit() != 0;
+			}
+
+			bitDepthLuma = reader.ue() + 8;
+			bitDepthChroma = reader.ue() + 8;
+			reader.bit(); // qpprime_y_zero_transform_bypass_flag
+
+			if (reader.bit() != 0) {
+				for (int i = 0, count = chromaFormat != 3 ? 8 : 12; i < count; ++i) {
+					if (reader.bit() != 0) {
+						reader.skipScalingList(i < 6 ? 16 : 64);
+					}
+				}
+			}
+			break;
+		default:
+			break;
+		}
+
+		reader.ue(); // log2_max_frame_num_minus4
+
+		int pocType = reader.ue();
+
+		if (pocType == 0) {
+			reader.ue(); // log2_max_pic_order_cnt_lsb_minus4
+		} else if (pocType == 1) {
+			reader.bit(); // delta_pic_order_always_zero_flag
+			reader.se(); // offset_for_non_ref_pic
+			reader.se(); // offset_for_top_to_bottom_field
+
+			for (int i = 0, count = reader.ue(); i < count; ++i) {
+				reader.se(); // offset_for_ref_frame
+			}
+		}
+
+		reader.ue(); // max_num_ref_frames
+		reader.bit(); // gaps_in_frame_num_value_allowed_flag
+
+		int widthInMbs = reader.ue() + 1;
+		int heightInMapUnits = reader.ue() + 1;
+		int frameMbsOnly = reader.bit();
+
+		if (frameMbsOnly == 0) {
+			reader.bit(); // mb_adaptive_frame_field_flag
+		}
+
+		reader.bit(); // direct_8x8_inference_flag
+
+		int cropLeft = 0;
+		int cropRight = 0;
+		int cropTop = 0;
+		int cropBottom = 0;
+
+		if (reader.bit() != 0) {
+			cropLeft = reader.ue();
+			cropRight = reader.ue();
+			cropTop = reader.ue();
+			cropBottom = reader.ue();
+		}
+
+		int arrayType = separateColourPlanes ? 0 : chromaFormat;
+		int cropUnitX = arrayType == 0 ? 1 : (arrayType == 3 ? 1 : 2);
+		int cropUnitY = (arrayType == 0 ? 1 : (arrayType == 1 ? 2 : 1)) * (2 - frameMbsOnly);
+
+		width = widthInMbs * 16 - cropUnitX * (cropLeft + cropRight);
+		height = (2 - frameMbsOnly) * heightInMapUnits * 16 - cropUnitY * (cropTop + cropBottom);
+	}
+
+	@Override
+	public void write(BoxBuilder box) {
+		box.start("avc1");
+		box.zeros(6); // reserved
+		box.u16(1); // data reference index
+		box.zeros(16); // pre-defined and reserved
+		box.u16(width);
+		box.u16(height);
+		box.u32(0x00480000); // 72 dpi
+		box.u32(0x00480000);
+		box.u32(0); // reserved
+		box.u16(1); // frame count
+		box.zeros(32); // compressor name
+		box.u16(0x0018); // depth
+		box.u16(0xFFFF); // pre-defined
+
+		box.start("avcC");
+		box.u8(1); // version
+		box.u8(sps[1]); // profile
+		box.u8(sps[2]); // compatibility
+		box.u8(sps[3]); // level
+		box.u8(0xFF); // 4-byte NAL unit lengths
+		box.u8(0xE1); // one SPS
+		box.u16(sps.length);
+		box.bytes(sps);
+		box.u8(1); // one PPS
+		box.u16(pps.length);
+		box.bytes(pps);
+
+		switch (sps[1] & 0xFF) {
+		case 100:
+		case 110:
+		case 122:
+		case 144:
+			box.u8(0xFC | chromaFormat);
+			box.u8(0xF8 | (bitDepthLuma - 8));
+			box.u8(0xF8 | (bitDepthChroma - 8));
+			box.u8(0); // no SPS extensions
+			break;
+		default:
+			break;
+		}
+
+		box.end();
+		box.end();
+	}
+
+}
@@ -0,0 +1,144 @@
+package tablo.remux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds ISO base media file format boxes in memory. Boxes may be nested:
+ * the size of each box is filled in when it is ended.
+ */
+final class BoxBuilder {
+
+	private byte[] data;
+
+	private int depth;
+
+	private int size;
+
+	private final int[] starts;
+
+	BoxBuilder() {
+		super();
+		this.data = new byte[4096];
+		this.depth = 0;
+		this.size = 0;
+		this.starts = new int[32];
+	}
+
+	BoxBuilder bytes(byte[] bytes) {
+		return bytes(bytes, 0, bytes.length);
+	}
+
+	BoxBuilder bytes(byte[] bytes, int offset, int length) {
+		ensure(length);
+		System.arraycopy(bytes, offset, data, size, length);
+		size += length;
+
+		return this;
+	}
+
+	/**
+	 * End the most recently started box.
+	 */
+	BoxBuilder end() {
+		int start = starts[--depth];
+
+		return patch(start, size - start);
+	}
+
+	private void ensure(int count) {
+		if (size + count > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, size + count));
+		}
+	}
+
+	BoxBuilder fourcc(String type) {
+		return bytes(type.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Overwrite the four bytes at the given position with the given value.
+	 */
+	BoxBuilder patch(int position, int value) {
+		data[position + 0] = (byte) (value >>> 24);
+		data[position + 1] = (byte) (value >>> 16);
+		data[position + 2] = (byte) (value >>> 8);
+		data[position + 3] = (byte) value;
+
+		return this;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Start a box with the given type.
+	 */
+	BoxBuilder start(String type) {
+		starts[depth++] = size;
+
+		return u32(0).fourcc(type);
+	}
+
+	/**
+	 * Start a 'full' box with the given type, version and flags.
+	 */
+	BoxBuilder start(String type, int version, int flags) {
+		return start(type).u32((version << 24) | (flags & 0xFFFFFF));
+	}
+
+	/**
+	 * Append a time or duration, which has 64 bits in a box of version 1
+	 * (see Mp4Writer.timeVersion) and 32 bits otherwise.
+	 */
+	BoxBuilder time(int version, long value) {
+		return version == 1 ? u64(value) : u32(value);
+	}
+
+	byte[] toByteArray() {
+		if (depth != 0) {
+			throw new IllegalStateException("unfinished box");
+		}
+
+		return Arrays.copyOf(data, size);
+	}
+
+	BoxBuilder u16(int value) {
+		ensure(2);
+		data[size++] = (byte) (value >>> 8);
+		data[size++] = (byte) value;
+
+		return this;
+	}
+
+	BoxBuilder u32(long value) {
+		ensure(4);
+		data[size++] = (byte) (value >>> 24);
+		data[size++] = (byte) (value >>> 16);
+		data[size++] = (byte) (value >>> 8);
+		data[size++] = (byte) value;
+
+		return this;
+	}
+
+	BoxBuilder u64(long value) {
+		return u32(value >>> 32).u32(value);
+	}
+
+	BoxBuilder u8(int value) {
+		ensure(1);
+		data[size++] = (byte) value;
+
+		return this;
+	}
+
+	BoxBuilder zeros(int count) {
+		ensure(count);
+		Arrays.fill(data, size, size + count, (byte) 0);
+		size += count;
+
+		return this;
+	}
+
+}
@@ -0,0 +1,712 @@
+package tablo.remux;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes an MP4 file with the movie box ('moov') before the media data, so
+ * the file can be played while it is being read. Sample data is spooled to
+ * a temporary file while only the sample tables are kept in memory; when
+ * finished, the movie box is written followed by the spooled data.
+ */
+final class Mp4Writer implements Closeable {
+
+	/**
+	 * Describes the samples of a track.
+	 */
+	interface SampleEntry {
+
+		int getHeight();
+
+		int getWidth();
+
+		void write(BoxBuilder box);
+
+	}
+
+	/**
+	 * A growable list of int values.
+	 */
+	private static final class IntList {
+
+		private int size;
+
+		private int[] values;
+
+		IntList() {
+			super();
+			this.size = 0;
+			this.values = new int[1024];
+		}
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+
+			values[size++] = value;
+		}
+
+		int get(int index) {
+			return values[index];
+		}
+
+		void increment(int index) {
+			values[index] += 1;
+		}
+
+		int size() {
+			return size;
+		}
+
+	}
+
+	/**
+	 * A growable list of long values.
+	 */
+	private static final class LongList {
+
+		private int size;
+
+		private long[] values;
+
+		LongList() {
+			super();
+			this.size = 0;
+			this.values = new long[1024];
+		}
+
+		void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+
+			values[size++] = value;
+		}
+
+		long get(int index) {
+			return values[index];
+		}
+
+		int size() {
+			return size;
+		}
+
+	}
+
+	final class Track {
+
+		private final IntList chunkCounts;
+
+		private final LongList chunkOffsets;
+
+		private final IntList compositionOffsets;
+
+		private final LongList decodeTimes;
+
+		/**
+		 * The sample duration used when none can be derived from the decode times.
+		 */
+		private final int defaultDuration;
+
+		private final SampleEntry entry;
+
+		private final String handler;
+
+		private final int id;
+
+		private final IntList sizes;
+
+		private final IntList syncSamples;
+
+		private final int timescale;
+
+		Track(int id, String handler, int timescale, int defaultDuration, SampleEntry entry) {
+			super();
+			this.chunkCounts = new IntList();
+			this.chunkOffsets = new LongList();
+			this.compositionOffsets = new IntList();
+			this.decodeTimes = new LongList();
+			this.defaultDuration = defaultDuration;
+			this.entry = entry;
+			this.handler = handler;
+			this.id = id;
+			this.sizes = new IntList();
+			this.syncSamples = new IntList();
+			this.timescale = timescale;
+		}
+
+		/**
+		 * Append a sample to the track.
+		 *
+		 * @param decodeTime the decode time of the sample, in the timescale of the track
+		 * @param compositionOffset the presentation time less the decode time
+		 * @param sync whether the sample can be decoded independently
+		 */
+		void addSample(byte[] data, int offset, int length, long decodeTime, int compositionOffset, boolean sync)
+				throws IOException {
+			if (lastTrack != this) {
+				chunkOffsets.add(dataSize);
+				chunkCounts.add(0);
+				lastTrack = this;
+			}
+
+			spool.write(data, offset, length);
+			dataSize += length;
+
+			chunkCounts.increment(chunkCounts.size() - 1);
+			compositionOffsets.add(Math.max(0, compositionOffset));
+			decodeTimes.add(decodeTime);
+			sizes.add(length);
+
+			if (sync) {
+				syncSamples.add(sizes.size());
+			}
+		}
+
+		/**
+		 * Answer the duration of each sample: the difference between successive
+		 * decode times, except where that is implausible. A gap before the next
+		 * sample extends the duration of the previous one, so the timeline is
+		 * preserved.
+		 */
+		int[] getDurations() {
+			int count = decodeTimes.size();
+			int[] durations = new int[count];
+			int last = defaultDuration;
+
+			for (int i = 0; i + 1 < count; ++i) {
+				long delta = decodeTimes.get(i + 1) - decodeTimes.get(i);
+
+				// ignore discontinuities
+				if (0 < delta && delta <= (long) timescale * GapLimit) {
+					last = (int) delta;
+				}
+
+				durations[i] = last;
+			}
+
+			if (count > 0) {
+				durations[count - 1] = last;
+			}
+
+			return durations;
+		}
+
+		/**
+		 * @return the duration, in the movie timescale, from the given base time
+		 *         to the end of this track
+		 */
+		long getEndTime(long baseTime) {
+			long emptyDuration = Math.max(0, toMovieTime(getStartTime()) - baseTime);
+
+			return emptyDuration + toMovieTime(getMediaDuration() - getMediaStart());
+		}
+
+		long getMediaDuration() {
+			return Arrays.stream(getDurations()).asLongStream().sum();
+		}
+
+		/**
+		 * Answer the time, relative to the first sample, at which presentation starts.
+		 */
+		long getMediaStart() {
+			return Math.max(0, getStartTime() - decodeTimes.get(0));
+		}
+
+		/**
+		 * Answer the earliest presentation time, in the timescale of the track.
+		 */
+		long getStartTime() {
+			long start = Long.MAX_VALUE;
+
+			// the first presented sample must be among the first few decoded
+			for (int i = 0, count = Math.min(decodeTimes.size(), 16); i < count; ++i) {
+				start = Math.min(start, decodeTimes.get(i) + compositionOffsets.get(i));
+			}
+
+			return start;
+		}
+
+		boolean isEmpty() {
+			return sizes.size() == 0;
+		}
+
+		private long toMovieTime(long time) {
+			return time * Timescale / timescale;
+		}
+
+		private void writeTrack(BoxBuilder box, long baseTime, long dataOffset, boolean largeOffsets) {
+			int[] durations = getDurations();
+			long mediaDuration = Arrays.stream(durations).asLongStream().sum();
+			long mediaStart = getMediaStart();
+			long emptyDuration = Math.max(0, toMovieTime(getStartTime()) - baseTime);
+			long presentedDuration = toMovieTime(mediaDuration - mediaStart);
+			boolean video = "vide".equals(handler);
+			int version = timeVersion(emptyDuration + presentedDuration);
+
+			box.start("trak");
+
+			box.start("tkhd", version, 3); // enabled, in movie
+			box.time(version, 0); // creation time
+			box.time(version, 0); // modification time
+			box.u32(id);
+			box.u32(0); // reserved
+			box.time(version, emptyDuration + presentedDuration);
+			box.zeros(8); // reserved
+			box.u16(0); // layer
+			box.u16(0); // alternate group
+			box.u16(video ? 0 : 0x0100); // volume
+			box.u16(0); // reserved
+			writeMatrix(box);
+			box.u32((long) entry.getWidth() << 16);
+			box.u32((long) entry.getHeight() << 16);
+			box.end();
+
+			version = timeVersion(emptyDuration, presentedDuration, mediaStart);
+
+			box.start("edts");
+			box.start("elst", version, 0);
+			box.u32(emptyDuration > 0 ? 2 : 1);
+
+			if (emptyDuration > 0) {
+				box.time(version, emptyDuration);
+				box.time(version, -1); // empty
+				box.u32(0x00010000);
+			}
+
+			box.time(version, presentedDuration);
+			box.time(version, mediaStart);
+			box.u32(0x00010000);
+			box.end();
+			box.end();
+
+			box.start("mdia");
+
+			version = timeVersion(mediaDuration);
+
+			box.start("mdhd", version, 0);
+			box.time(version, 0); // creation time
+			box.time(version, 0); // modification time
+			box.u32(timescale);
+			box.time(version, mediaDuration);
+			box.u16(0x55C4); // undetermined language
+			box.u16(0);
+			box.end();
+
+			box.start("hdlr", 0, 0);
+			box.u32(0);
+			box.fourcc(handler);
+			box.zeros(12);
+			box.bytes((video ? "VideoHandler\0" : "SoundHandler\0").getBytes(StandardCharsets.US_ASCII));
+			box.end();
+
+			box.start("minf");
+
+			if (video) {
+				box.start("vmhd", 0, 1);
+				box.zeros(8);
+				box.end();
+			} else {
+				box.start("smhd", 0, 0);
+				box.zeros(4);
+				box.end();
+			}
+
+			box.start("dinf");
+			box.start("dref", 0, 0);
+			box.u32(1);
+			box.start("url ", 0, 1).end(); // data in this file
+			box.end();
+			box.end();
+
+			box.start("stbl");
+
+			box.start("stsd", 0, 0);
+			box.u32(1);
+			entry.write(box);
+			box.end();
+
+			writeRuns(box, "stts", durations);
+
+			if (video && Arrays.stream(compositionOffsets.values, 0, compositionOffsets.size()).anyMatch(o -> o != 0)) {
+				writeRuns(box, "ctts", Arrays.copyOf(compositionOffsets.values, compositionOffsets.size()));
+			}
+
+			if (video) {
+				box.start("stss", 0, 0);
+				box.u32(syncSamples.size());
+
+				for (int i = 0; i < syncSamples.size(); ++i) {
+					box.u32(syncSamples.get(i));
+				}
+
+				box.end();
+			}
+
+			box.start("stsc", 0, 0);
+
+			int entryCountPosition = box.size();
+			int entries = 0;
+
+			box.u32(0);
+
+			for (int i = 0, previous = -1; i < chunkCounts.size(); ++i) {
+				int count = chunkCounts.get(i);
+
+				if (count != previous) {
+					box.u32(i + 1); // first chunk
+					box.u32(count); // samples per chunk
+					box.u32(1); // sample description index
+					previous = count;
+					entries += 1;
+				}
+			}
+
+			box.patch(entryCountPosition, entries);
+			box.end();
+
+			box.start("stsz", 0, 0);
+			box.u32(0); // sizes vary
+			box.u32(sizes.size());
+
+			for (int i = 0; i < sizes.size(); ++i) {
+				box.u32(sizes.get(i));
+			}
+
+			box.end();
+
+			box.start(largeOffsets ? "co64" : "stco", 0, 0);
+			box.u32(chunkOffsets.size());
+
+			for (int i = 0; i < chunkOffsets.size(); ++i) {
+				long offset = dataOffset + chunkOffsets.get(i);
+
+				if (largeOffsets) {
+					box.u64(offset);
+				} else {
+					box.u32(offset);
+				}
+			}
+
+			box.end();
+
+			box.end(); // stbl
+			box.end(); // minf
+			box.end(); // mdia
+			box.end(); // trak
+		}
+	}
+
+	/**
+	 * The longest gap, in seconds, between successive samples of a track
+	 * which is kept (e.g. where the signal was lost); a longer jump in time
+	 * stamps is taken as a discontinuity and closed up.
+	 */
+	static final int GapLimit = 300;
+
+	/**
+	 * How metadata keys (as used with ffmpeg) map to iTunes-style item types.
+	 */
+	private static final Map<String, String> MetadataItems;
+
+	/**
+	 * Metadata items which hold integers.
+	 */
+	private static final List<String> NumericItems = Arrays.asList("tves", "tvsn");
+
+	/**
+	 * The timescale of the movie.
+	 */
+	private static final int Timescale = 1000;
+
+	static {
+		Map<String, String> items = new LinkedHashMap<>();
+
+		items.put("album", "\u00A9alb");
+		items.put("artist", "\u00A9ART");
+		items.put("comment", "\u00A9cmt");
+		items.put("date", "\u00A9day");
+		items.put("description", "desc");
+		items.put("episode_id", "tven");
+		items.put("episode_sort", "tves");
+		items.put("genre", "\u00A9gen");
+		items.put("network", "tvnn");
+		items.put("season_number", "tvsn");
+		items.put("show", "tvsh");
+		items.put("synopsis", "ldes");
+		items.put("title", "\u00A9nam");
+
+		MetadataItems = items;
+	}
+
+	/**
+	 * Answer the version of a box (such as 'mdhd') which can hold the given
+	 * times: 1 if any needs 64 bits (e.g. durations of 13.3 hours or more in
+	 * a 90kHz timescale), otherwise 0.
+	 */
+	private static int timeVersion(long... times) {
+		for (long time : times) {
+			if (time > 0xFFFFFFFFL) {
+				return 1;
+			}
+		}
+
+		return 0;
+	}
+
+	private static void write(FileChannel channel, byte[] bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static void writeMatrix(BoxBuilder box) {
+		box.u32(0x00010000).u32(0).u32(0);
+		box.u32(0).u32(0x00010000).u32(0);
+		box.u32(0).u32(0).u32(0x40000000);
+	}
+
+	private static void writeMetadata(BoxBuilder box, Map<String, String> metadata) {
+		List<Map.Entry<String, String>> entries = new ArrayList<>();
+
+		metadata.forEach((key, value) -> {
+			if (MetadataItems.containsKey(key) && value != null && !value.isEmpty()) {
+				entries.add(Map.entry(MetadataItems.get(key), value));
+			}
+		});
+
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		box.start("udta");
+		box.start("meta", 0, 0);
+
+		box.start("hdlr", 0, 0);
+		box.u32(0);
+		box.fourcc("mdir");
+		box.fourcc("appl");
+		box.zeros(8);
+		box.u8(0);
+		box.end();
+
+		box.start("ilst");
+
+		for (Map.Entry<String, String> entry : entries) {
+			String type = entry.getKey();
+			String value = entry.getValue();
+
+			box.start(type);
+
+			if (NumericItems.contains(type)) {
+				int number;
+
+				try {
+					number = Integer.parseInt(value.trim());
+				} catch (NumberFormatException e) {
+					box.end();
+					continue;
+				}
+
+				box.start("data").u32(21).u32(0).u32(number).end();
+			} else {
+				box.start("data").u32(1).u32(0).bytes(value.getBytes(StandardCharsets.UTF_8)).end();
+			}
+
+			box.end();
+		}
+
+		box.end(); // ilst
+		box.end(); // meta
+		box.end(); // udta
+	}
+
+	private static void writeRuns(BoxBuilder box, String type, int[] values) {
+		box.start(type, 0, 0);
+
+		int countPosition = box.size();
+		int entries = 0;
+
+		box.u32(0);
+
+		for (int i = 0; i < values.length;) {
+			int value = values[i];
+			int run = 1;
+
+			while (i + run < values.length && values[i + run] == value) {
+				++run;
+			}
+
+			box.u32(run);
+			box.u32(value);
+			entries += 1;
+			i += run;
+		}
+
+		box.patch(countPosition, entries);
+		box.end();
+	}
+
+	private long dataSize;
+
+	private Track lastTrack;
+
+	private final File output;
+
+	private final OutputStream spool;
+
+	private final File spoolFile;
+
+	private final List<Track> tracks;
+
+	/**
+	 * @param output the file to be written
+	 */
+	Mp4Writer(File output) throws IOException {
+		super();
+		this.dataSize = 0;
+		this.lastTrack = null;
+		this.output = output;
+		this.spoolFile = File.createTempFile("remux-", ".tmp", output.getAbsoluteFile().getParentFile());
+		this.spool = new BufferedOutputStream(new FileOutputStream(spoolFile), 256 * 1024);
+		this.tracks = new ArrayList<>();
+	}
+
+	/**
+	 * Add a track.
+	 *
+	 * @param handler 'vide' or 'soun'
+	 * @param timescale the units of time per second used by the track
+	 * @param defaultDuration the sample duration to use when it cannot be determined
+	 * @param entry the description of the samples
+	 */
+	Track addTrack(String handler, int timescale, int defaultDuration, SampleEntry entry) {
+		Track track = new Track(tracks.size() + 1, handler, timescale, defaultDuration, entry);
+
+		tracks.add(track);
+
+		return track;
+	}
+
+	private byte[] buildFileType() {
+		BoxBuilder box = new BoxBuilder();
+
+		box.start("ftyp");
+		box.fourcc("isom");
+		box.u32(0x200);
+		box.fourcc("isom");
+		box.fourcc("iso2");
+		box.fourcc("avc1");
+		box.fourcc("mp41");
+		box.end();
+
+		return box.toByteArray();
+	}
+
+	private byte[] buildMovie(List<Track> used, Map<String, String> metadata, long dataOffset,
+			boolean largeOffsets) {
+		long baseTime = used.stream() // <br/>
+				.mapToLong(track -> track.toMovieTime(track.getStartTime())) // <br/>
+				.min().orElse(0);
+		long duration = used.stream() // <br/>
+				.mapToLong(track -> track.getEndTime(baseTime)) // <br/>
+				.max().orElse(0);
+		BoxBuilder box = new BoxBuilder();
+		int version = timeVersion(duration);
+
+		box.start("moov");
+
+		box.start("mvhd", version, 0);
+		box.time(version, 0); // creation time
+		box.time(version, 0); // modification time
+		box.u32(Timescale);
+		box.time(version, duration);
+		box.u32(0x00010000); // rate
+		box.u16(0x0100); // volume
+		box.zeros(10); // reserved
+		writeMatrix(box);
+		box.zeros(24); // pre-defined
+		box.u32(used.size() + 1); // next track
+		box.end();
+
+		for (Track track : used) {
+			track.writeTrack(box, baseTime, dataOffset, largeOffsets);
+		}
+
+		writeMetadata(box, metadata);
+
+		box.end();
+
+		return box.toByteArray();
+	}
+
+	/**
+	 * Discard the temporary data.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			spool.close();
+		} finally {
+			spoolFile.delete();
+		}
+	}
+
+	/**
+	 * Write the output file.
+	 */
+	void finish(Map<String, String> metadata) throws IOException {
+		List<Track> used = new ArrayList<>(tracks);
+
+		used.removeIf(Track::isEmpty);
+
+		if (used.isEmpty()) {
+			throw new IOException("no samples");
+		}
+
+		spool.close();
+
+		byte[] fileType = buildFileType();
+		int dataHeader = dataSize + 8 > 0xFFFFFFFFL ? 16 : 8;
+		boolean largeOffsets = fileType.length + buildMovie(used, metadata, 0, false).length + dataHeader
+				+ dataSize > 0xFFFFFFFFL;
+		int movieSize = buildMovie(used, metadata, 0, largeOffsets).length;
+		byte[] movie = buildMovie(used, metadata, fileType.length + movieSize + dataHeader, largeOffsets);
+		BoxBuilder header = new BoxBuilder();
+
+		if (dataHeader == 16) {
+			header.u32(1).fourcc("mdat").u64(16 + dataSize);
+		} else {
+			header.u32(8 + dataSize).fourcc("mdat");
+		}
+
+		try (FileChannel target = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				FileChannel source = FileChannel.open(spoolFile.toPath(), StandardOpenOption.READ)) {
+			write(target, fileType);
+			write(target, movie);
+			write(target, header.toByteArray());
+
+			for (long position = 0; position < dataSize;) {
+				position += source.transferTo(position, dataSize - position, target);
+			}
+		}
+	}
+
+}
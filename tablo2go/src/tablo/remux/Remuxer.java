@@ -0,0 +1,267 @@
+package tablo.remux;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import tablo.Transcoder;
+import tablo.remux.TsDemuxer.Pes;
+
+/**
+ * Rewraps H.264 video and AAC audio from an MPEG transport stream into an
+ * MP4 file without re-encoding, as 'ffmpeg -c copy -bsf:a aac_adtstoasc'
+ * would, but without starting another process. Each instance is used
+ * for a single input.
+ */
+public final class Remuxer implements Transcoder {
+
+	/**
+	 * The time stamps in a transport stream wrap at 2^33.
+	 */
+	private static final long TimeStampWrap = 1L << 33;
+
+	/**
+	 * Answer the given 33-bit time stamp, extended so that it is nearest
+	 * the given previous (extended) value.
+	 */
+	private static long unwrap(long value, long previous) {
+		if (previous < 0) {
+			return value;
+		}
+
+		long result = value + (previous - (previous % TimeStampWrap));
+
+		if (result < previous - TimeStampWrap / 2) {
+			result += TimeStampWrap;
+		} else if (result > previous + TimeStampWrap / 2) {
+			result -= TimeStampWrap;
+		}
+
+		return result;
+	}
+
+	/**
+	 * The time stamp (extended, in 90kHz units) of the latest audio packet.
+	 */
+	private long audioPts;
+
+	/**
+	 * The sample rate of the audio, which is its timescale.
+	 */
+	private int audioRate;
+
+	/**
+	 * The total of the discontinuities in audio time stamps (in the audio
+	 * timescale), which have been closed up.
+	 */
+	private long audioShift;
+
+	/**
+	 * The decode time (in the audio timescale) of the next audio frame.
+	 */
+	private long audioTime;
+
+	private Mp4Writer.Track audioTrack;
+
+	/**
+	 * Any incomplete ADTS frame from the end of the previous audio packet.
+	 */
+	private byte[] pendingAudio;
+
+	private long previousTime;
+
+	private final AvcConfig videoConfig;
+
+	private Mp4Writer.Track videoTrack;
+
+	private Mp4Writer writer;
+
+	public Remuxer() {
+		super();
+		this.audioPts = -1;
+		this.audioRate = 0;
+		this.audioShift = 0;
+		this.audioTime = 0;
+		this.audioTrack = null;
+		this.pendingAudio = new byte[0];
+		this.previousTime = -1;
+		this.videoConfig = new AvcConfig();
+		this.videoTrack = null;
+		this.writer = null;
+	}
+
+	private void processAudio(Pes pes) throws IOException {
+		byte[] data = pes.data;
+		// the bytes of a frame started in the previous packet
+		int continued = pendingAudio.length;
+		// the time stamp of the first frame which starts in this packet
+		long packetPts = -1;
+
+		if (pes.pts >= 0) {
+			packetPts = unwrap(pes.pts, audioPts >= 0 ? audioPts : previousTime);
+			audioPts = packetPts;
+		}
+
+		if (pendingAudio.length != 0) {
+			byte[] joined = Arrays.copyOf(pendingAudio, pendingAudio.length + data.length);
+
+			System.arraycopy(data, 0, joined, pendingAudio.length, data.length);
+			data = joined;
+		}
+
+		int offset = 0;
+
+		while (offset + 7 <= data.length) {
+			if (!AacConfig.isHeader(data, offset)) {
+				++offset;
+				continue;
+			}
+
+			int length = AacConfig.frameLength(data, offset);
+			int header = AacConfig.headerLength(data, offset);
+
+			if (length <= header) {
+				++offset;
+				continue;
+			}
+
+			if (offset + length > data.length) {
+				break;
+			}
+
+			if (offset >= continued && packetPts >= 0) {
+				if (audioTrack == null) {
+					AacConfig audioConfig = AacConfig.parse(data, offset);
+
+					audioRate = audioConfig.getSampleRate();
+					audioTime = packetPts * audioRate / 90000;
+					audioTrack = writer.addTrack("soun", audioRate, AacConfig.FrameSamples, audioConfig);
+				} else if (!syncAudio(packetPts * audioRate / 90000)) {
+					packetPts = -1;
+					offset += length;
+					continue;
+				}
+
+				// later frames of the packet follow this one
+				packetPts = -1;
+			} else if (audioTrack == null) {
+				offset += length;
+				continue;
+			}
+
+			audioTrack.addSample(data, offset + header, length - header, audioTime, 0, true);
+			audioTime += AacConfig.FrameSamples;
+			offset += length;
+		}
+
+		pendingAudio = Arrays.copyOfRange(data, offset, data.length);
+	}
+
+	private void processVideo(Pes pes) throws IOException {
+		ByteArrayOutputStream sample = new ByteArrayOutputStream(pes.data.length + 64);
+		boolean sync = pes.randomAccess;
+
+		for (byte[] unit : AvcConfig.splitNalUnits(pes.data)) {
+			int type = unit[0] & 0x1F;
+
+			if (type == AvcConfig.TypeAccessUnitDelimiter) {
+				continue;
+			}
+
+			if (type == AvcConfig.TypeIdr) {
+				sync = true;
+			}
+
+			videoConfig.accept(unit);
+
+			sample.write(unit.length >>> 24);
+			sample.write(unit.length >>> 16);
+			sample.write(unit.length >>> 8);
+			sample.write(unit.length);
+			sample.write(unit);
+		}
+
+		if (videoTrack == null) {
+			// start at the first key frame that follows the parameter sets
+			if (!sync || !videoConfig.isComplete() || pes.pts < 0) {
+				return;
+			}
+
+			videoTrack = writer.addTrack("vide", 90000, 3003, videoConfig);
+		}
+
+		if (sample.size() == 0) {
+			return;
+		}
+
+		long pts;
+		long dts;
+
+		if (pes.pts >= 0) {
+			pts = unwrap(pes.pts, previousTime);
+			dts = unwrap(pes.dts, pts);
+			previousTime = dts;
+		} else {
+			// without time stamps, the sample duration is determined later
+			pts = dts = previousTime;
+		}
+
+		videoTrack.addSample(sample.toByteArray(), 0, sample.size(), dts, (int) (pts - dts), sync);
+	}
+
+	/**
+	 * Bring the time of the next audio frame into line with the given time
+	 * (from its packet's time stamp), answering whether to keep the frame.
+	 * Frames are contiguous unless audio was lost: a difference of less than
+	 * a frame is only the rounding of time stamps, and is ignored so sample
+	 * durations stay exact. After a gap, the frame starts at its time stamp
+	 * (the writer extends the previous frame over the gap); if the frames
+	 * are a frame or more ahead of their time stamps, this one is dropped.
+	 * A jump longer than the writer's GapLimit is a discontinuity in the
+	 * time stamps, which the writer closes up for video, so it is closed up
+	 * here too, and later time stamps are taken relative to it.
+	 */
+	private boolean syncAudio(long frameTime) {
+		long gap = frameTime - audioShift - audioTime;
+
+		if (Math.abs(gap) > (long) audioRate * Mp4Writer.GapLimit) {
+			audioShift += gap;
+			return true;
+		}
+
+		if (gap >= AacConfig.FrameSamples) {
+			audioTime += gap;
+			return true;
+		}
+
+		return gap > -AacConfig.FrameSamples;
+	}
+
+	@Override
+	public void transcode(InputStream input, File output, Map<String, String> metadata) throws IOException {
+		TsDemuxer demuxer = new TsDemuxer(new BufferedInputStream(input, 64 * 1024));
+
+		try (Mp4Writer mp4 = new Mp4Writer(output)) {
+			Pes pes;
+
+			writer = mp4;
+
+			while ((pes = demuxer.next()) != null) {
+				if (pes.streamType == TsDemuxer.StreamTypeH264) {
+					processVideo(pes);
+				} else if (pes.streamType == TsDemuxer.StreamTypeAac) {
+					processAudio(pes);
+				}
+			}
+
+			mp4.finish(metadata);
+		} finally {
+			writer = null;
+		}
+	}
+
+}
@@ -0,0 +1,388 @@
+package tablo.remux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Extracts the PES packets of the first video and first audio stream
+ * of the first program in an MPEG transport stream.
+ */
+final class TsDemuxer {
+
+	/**
+	 * A complete PES packet.
+	 */
+	static final class Pes {
+
+		/**
+		 * The payload of the packet.
+		 */
+		final byte[] data;
+
+		/**
+		 * The decoding time stamp (90kHz), or -1 if absent.
+		 */
+		final long dts;
+
+		/**
+		 * The presentation time stamp (90kHz), or -1 if absent.
+		 */
+		final long pts;
+
+		/**
+		 * Whether the transport stream flagged the start of this packet
+		 * as a random access point.
+		 */
+		final boolean randomAccess;
+
+		final int streamType;
+
+		Pes(int streamType, long pts, long dts, boolean randomAccess, byte[] data) {
+			super();
+			this.data = data;
+			this.dts = dts;
+			this.pts = pts;
+			this.randomAccess = randomAccess;
+			this.streamType = streamType;
+		}
+
+	}
+
+	private static final class Stream {
+
+		final ByteArrayOutputStream buffer;
+
+		/**
+		 * The total expected size of the PES packet, or 0 if unbounded.
+		 */
+		int expected;
+
+		boolean randomAccess;
+
+		boolean started;
+
+		final int streamType;
+
+		Stream(int streamType) {
+			super();
+			this.buffer = new ByteArrayOutputStream(64 * 1024);
+			this.expected = 0;
+			this.randomAccess = false;
+			this.started = false;
+			this.streamType = streamType;
+		}
+
+	}
+
+	static final int PacketSize = 188;
+
+	static final int StreamTypeAac = 0x0F;
+
+	static final int StreamTypeH264 = 0x1B;
+
+	private static final int SyncByte = 0x47;
+
+	private static boolean isAudio(int streamType) {
+		switch (streamType) {
+		case 0x03: // MPEG-1 audio
+		case 0x04: // MPEG-2 audio
+		case 0x0F: // AAC (ADTS)
+		case 0x11: // AAC (LATM)
+		case 0x81: // AC-3
+		case 0x87: // E-AC-3
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isVideo(int streamType) {
+		switch (streamType) {
+		case 0x01: // MPEG-1 video
+		case 0x02: // MPEG-2 video
+		case 0x10: // MPEG-4 part 2
+		case 0x1B: // H.264
+		case 0x24: // HEVC
+		case 0xEA: // VC-1
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static long readTimeStamp(byte[] data, int offset) {
+		return ((long) (data[offset] & 0x0E) << 29) // <br/>
+				| ((data[offset + 1] & 0xFF) << 22) // <br/>
+				| ((data[offset + 2] & 0xFE) << 14) // <br/>
+				| ((data[offset + 3] & 0xFF) << 7) // <br/>
+				| ((data[offset + 4] & 0xFF) >>> 1);
+	}
+
+	private static int u16(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	/**
+	 * The PID of the audio stream, or -1 if none (or not yet known).
+	 */
+	private int audioPid;
+
+	private boolean eof;
+
+	private final InputStream input;
+
+	private final byte[] packet;
+
+	private int pmtPid;
+
+	private final Queue<Pes> ready;
+
+	private final Map<Integer, Stream> streams;
+
+	/**
+	 * The PID of the video stream, or -1 if none (or not yet known).
+	 */
+	private int videoPid;
+
+	TsDemuxer(InputStream input) {
+		super();
+		this.audioPid = -1;
+		this.eof = false;
+		this.input = input;
+		this.packet = new byte[PacketSize];
+		this.pmtPid = -1;
+		this.ready = new ArrayDeque<>();
+		this.streams = new HashMap<>();
+		this.videoPid = -1;
+	}
+
+	private void complete(Stream stream) {
+		if (!stream.started) {
+			return;
+		}
+
+		stream.started = false;
+
+		byte[] data = stream.buffer.toByteArray();
+
+		stream.buffer.reset();
+
+		if (data.length < 9 || data[0] != 0 || data[1] != 0 || data[2] != 1) {
+			return;
+		}
+
+		int length = u16(data, 4);
+		int end = length != 0 ? Math.min(data.length, 6 + length) : data.length;
+		int flags = (data[7] & 0xC0) >>> 6;
+		int start = 9 + (data[8] & 0xFF);
+		long pts = -1;
+		long dts = -1;
+
+		if (start > end) {
+			return;
+		}
+
+		if ((flags & 2) != 0 && data.length >= 14) {
+			pts = readTimeStamp(data, 9);
+			dts = pts;
+		}
+
+		if (flags == 3 && data.length >= 19) {
+			dts = readTimeStamp(data, 14);
+		}
+
+		ready.add(new Pes(stream.streamType, pts, dts, stream.randomAccess, Arrays.copyOfRange(data, start, end)));
+	}
+
+	int getAudioPid() {
+		return audioPid;
+	}
+
+	int getVideoPid() {
+		return videoPid;
+	}
+
+	/**
+	 * Answer the next complete PES packet, or null at the end of the input.
+	 */
+	Pes next() throws IOException {
+		while (ready.isEmpty() && !eof) {
+			if (readPacket()) {
+				processPacket();
+			} else {
+				eof = true;
+				streams.values().forEach(this::complete);
+			}
+		}
+
+		return ready.poll();
+	}
+
+	private void processPacket() throws UnsupportedStreamException {
+		if ((packet[1] & 0x80) != 0) {
+			// transport error
+			return;
+		}
+
+		int pid = ((packet[1] & 0x1F) << 8) | (packet[2] & 0xFF);
+		boolean unitStart = (packet[1] & 0x40) != 0;
+		int control = (packet[3] & 0x30) >>> 4;
+		int offset = 4;
+		boolean randomAccess = false;
+
+		if ((control & 2) != 0) {
+			int length = packet[4] & 0xFF;
+
+			randomAccess = length > 0 && (packet[5] & 0x40) != 0;
+			offset = 5 + length;
+		}
+
+		if ((control & 1) == 0 || offset >= PacketSize) {
+			return;
+		}
+
+		if (pid == 0) {
+			if (unitStart) {
+				processPat(offset);
+			}
+		} else if (pid == pmtPid) {
+			if (unitStart && streams.isEmpty()) {
+				processPmt(offset);
+			}
+		} else {
+			Stream stream = streams.get(Integer.valueOf(pid));
+
+			if (stream != null) {
+				processPayload(stream, unitStart, randomAccess, offset);
+			}
+		}
+	}
+
+	private void processPat(int offset) {
+		int table = offset + 1 + (packet[offset] & 0xFF);
+
+		if (table + 8 > PacketSize || packet[table] != 0) {
+			return;
+		}
+
+		int end = Math.min(table + 3 + (u16(packet, table + 1) & 0x0FFF) - 4, PacketSize);
+
+		for (int entry = table + 8; entry + 4 <= end; entry += 4) {
+			if (u16(packet, entry) != 0) {
+				pmtPid = u16(packet, entry + 2) & 0x1FFF;
+				break;
+			}
+		}
+	}
+
+	private void processPayload(Stream stream, boolean unitStart, boolean randomAccess, int offset) {
+		if (unitStart) {
+			complete(stream);
+			stream.started = true;
+			stream.randomAccess = randomAccess;
+			stream.expected = 0;
+
+			if (offset + 6 <= PacketSize) {
+				int length = u16(packet, offset + 4);
+
+				stream.expected = length != 0 ? 6 + length : 0;
+			}
+		}
+
+		if (stream.started) {
+			stream.buffer.write(packet, offset, PacketSize - offset);
+
+			if (stream.expected != 0 && stream.buffer.size() >= stream.expected) {
+				complete(stream);
+			}
+		}
+	}
+
+	private void processPmt(int offset) throws UnsupportedStreamException {
+		int table = offset + 1 + (packet[offset] & 0xFF);
+
+		if (table + 12 > PacketSize || packet[table] != 2) {
+			return;
+		}
+
+		int end = Math.min(table + 3 + (u16(packet, table + 1) & 0x0FFF) - 4, PacketSize);
+		int entry = table + 12 + (u16(packet, table + 10) & 0x0FFF);
+		int audioPid = -1;
+		int audioType = -1;
+		int videoPid = -1;
+		int videoType = -1;
+
+		for (; entry + 5 <= end; entry += 5 + (u16(packet, entry + 3) & 0x0FFF)) {
+			int streamType = packet[entry] & 0xFF;
+			int pid = u16(packet, entry + 1) & 0x1FFF;
+
+			if (videoPid < 0 && isVideo(streamType)) {
+				videoPid = pid;
+				videoType = streamType;
+			} else if (audioPid < 0 && isAudio(streamType)) {
+				audioPid = pid;
+				audioType = streamType;
+			}
+		}
+
+		if (videoPid >= 0 && videoType != StreamTypeH264) {
+			throw new UnsupportedStreamException(String.format("video stream type 0x%02x", Integer.valueOf(videoType)));
+		}
+
+		if (audioPid >= 0 && audioType != StreamTypeAac) {
+			throw new UnsupportedStreamException(String.format("audio stream type 0x%02x", Integer.valueOf(audioType)));
+		}
+
+		if (videoPid < 0 && audioPid < 0) {
+			throw new UnsupportedStreamException("no audio or video streams");
+		}
+
+		this.audioPid = audioPid;
+		this.videoPid = videoPid;
+
+		if (videoPid >= 0) {
+			streams.put(Integer.valueOf(videoPid), new Stream(videoType));
+		}
+
+		if (audioPid >= 0) {
+			streams.put(Integer.valueOf(audioPid), new Stream(audioType));
+		}
+	}
+
+	/**
+	 * Read the next packet, resynchronizing if necessary.
+	 *
+	 * @return false at the end of the input
+	 */
+	private boolean readPacket() throws IOException {
+		int first;
+
+		while ((first = input.read()) != SyncByte) {
+			if (first < 0) {
+				return false;
+			}
+		}
+
+		packet[0] = (byte) first;
+
+		for (int offset = 1; offset < PacketSize;) {
+			int count = input.read(packet, offset, PacketSize - offset);
+
+			if (count < 0) {
+				// ignore a truncated final packet
+				return false;
+			}
+
+			offset += count;
+		}
+
+		return true;
+	}
+
+}
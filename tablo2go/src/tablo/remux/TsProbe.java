@@ -0,0 +1,77 @@
+package tablo.remux;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The streams at the start of an MPEG transport stream: the PIDs of its
+ * video and audio, and the time stamp of its first video frame. Segments
+ * from different sources can only be joined into one stream if they agree,
+ * because the demuxer (like ffmpeg) follows the PIDs of the first program
+ * map table it reads.
+ */
+public final class TsProbe {
+
+	/**
+	 * The time stamps in a transport stream wrap at 2^33.
+	 */
+	private static final long TimeStampWrap = 1L << 33;
+
+	/**
+	 * The largest difference (90kHz) between the first video time stamps
+	 * of matching streams.
+	 */
+	private static final long Tolerance = 9000;
+
+	/**
+	 * Read the start of the given transport stream, up to its first video
+	 * time stamp. Streams which cannot be remuxed match nothing.
+	 */
+	public static TsProbe read(InputStream input) throws IOException {
+		TsDemuxer demuxer = new TsDemuxer(input);
+
+		try {
+			for (TsDemuxer.Pes pes; (pes = demuxer.next()) != null;) {
+				if (pes.streamType == TsDemuxer.StreamTypeH264 && pes.pts >= 0) {
+					return new TsProbe(demuxer.getVideoPid(), demuxer.getAudioPid(), pes.pts);
+				}
+			}
+		} catch (UnsupportedStreamException e) {
+			// fall through
+		}
+
+		return new TsProbe(-1, -1, -1);
+	}
+
+	private final int audioPid;
+
+	private final int videoPid;
+
+	private final long videoPts;
+
+	private TsProbe(int videoPid, int audioPid, long videoPts) {
+		super();
+		this.audioPid = audioPid;
+		this.videoPid = videoPid;
+		this.videoPts = videoPts;
+	}
+
+	/**
+	 * Answer whether the given stream has the same video and audio PIDs as
+	 * this one, and starts with video at (nearly) the same time.
+	 */
+	public boolean matches(TsProbe other) {
+		if (videoPts < 0 || other.videoPts < 0) {
+			return false;
+		}
+
+		if (videoPid != other.videoPid || audioPid != other.audioPid) {
+			return false;
+		}
+
+		long difference = Math.floorMod(videoPts - other.videoPts, TimeStampWrap);
+
+		return Math.min(difference, TimeStampWrap - difference) <= Tolerance;
+	}
+
+}
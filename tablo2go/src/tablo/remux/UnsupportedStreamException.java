@@ -0,0 +1,17 @@
+package tablo.remux;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an input contains streams that cannot be remuxed;
+ * such inputs should be handed to ffmpeg instead.
+ */
+public final class UnsupportedStreamException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UnsupportedStreamException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,167 @@
+package tablo.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the phases of a run, so a recording
+ * (e.g. with -XX:StartFlightRecording) shows which Tablo, airing or segment
+ * was in progress alongside what the JVM was doing. Events are committed
+ * only when enabled with the 'events' option and recorded by JFR; when
+ * either is off, creating and timing an event costs next to nothing.
+ */
+public final class Events {
+
+	@Name("tablo.AiringListing")
+	@Label("Airing Listing")
+	@Category({ "Tablo", "Scan" })
+	@Description("Listing the airings on a Tablo")
+	public static final class AiringListing extends Event {
+
+		@Label("Airings")
+		public int airings;
+
+		@Label("Tablo")
+		public String tablo;
+
+	}
+
+	@Name("tablo.CacheLoad")
+	@Label("Cache Load")
+	@Category({ "Tablo", "Scan" })
+	@Description("Loading the cache of airing metadata")
+	public static final class CacheLoad extends Event {
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+
+		@Label("File")
+		public String file;
+
+	}
+
+	@Name("tablo.CacheSave")
+	@Label("Cache Save")
+	@Category({ "Tablo", "Scan" })
+	@Description("Saving the cache of airing metadata")
+	public static final class CacheSave extends Event {
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+
+		@Label("File")
+		public String file;
+
+	}
+
+	@Name("tablo.Discovery")
+	@Label("Tablo Discovery")
+	@Category({ "Tablo", "Scan" })
+	@Description("Locating the Tablos on the local network")
+	public static final class Discovery extends Event {
+
+		@Label("Tablos Found")
+		public int tablos;
+
+	}
+
+	@Name("tablo.FfmpegJob")
+	@Label("ffmpeg Job")
+	@Category({ "Tablo", "Download" })
+	@Description("The lifetime of an ffmpeg process")
+	public static final class FfmpegJob extends Event {
+
+		@Label("Airing")
+		public String airing;
+
+		@Label("Exit Code")
+		public int exitCode;
+
+		@Label("Output")
+		public String output;
+
+		@Label("Tablo")
+		public String tablo;
+
+	}
+
+	@Name("tablo.MetadataFetch")
+	@Label("Metadata Fetch")
+	@Category({ "Tablo", "Scan" })
+	@Description("Reading the metadata of an airing or of the movie or series it belongs to")
+	public static final class MetadataFetch extends Event {
+
+		@Label("Airing")
+		public String airing;
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+
+		@Label("Cache Hit")
+		@Description("Whether the metadata was known without a request")
+		public boolean cacheHit;
+
+		@Label("Tablo")
+		public String tablo;
+
+	}
+
+	@Name("tablo.PlaylistRequest")
+	@Label("Playlist Request")
+	@Category({ "Tablo", "Download" })
+	@Description("Starting a streaming session for an airing")
+	public static final class PlaylistRequest extends Event {
+
+		@Label("Airing")
+		public String airing;
+
+		@Label("Found")
+		public boolean found;
+
+		@Label("Tablo")
+		public String tablo;
+
+	}
+
+	@Name("tablo.SegmentFetch")
+	@Label("Segment Fetch")
+	@Category({ "Tablo", "Download" })
+	@Description("Reading one segment of a video stream")
+	public static final class SegmentFetch extends Event {
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+
+		@Label("URL")
+		public String url;
+
+	}
+
+	private static volatile boolean enabled = false;
+
+	/**
+	 * Commit the given event, if events are enabled and JFR is recording it.
+	 */
+	public static void commit(Event event) {
+		if (enabled && event.shouldCommit()) {
+			event.commit();
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean value) {
+		enabled = value;
+	}
+
+}
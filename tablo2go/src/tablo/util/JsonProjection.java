@@ -0,0 +1,505 @@
+package tablo.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads selected fields of a JSON document without building a tree. Fields
+ * are named by paths of member names separated by dots, such as
+ * 'video_details.state'. The parser pulls characters from the input,
+ * descends only into members on the way to a selected field, and skips
+ * everything else without allocating; the values of the selected fields
+ * are answered as an array, in the order of the paths.
+ *
+ * Values are formatted as json-simple would: strings unescaped, integers as
+ * longs and other numbers as doubles. Objects, arrays and null are answered
+ * as null, as are fields which are absent.
+ */
+public final class JsonProjection {
+
+	/**
+	 * A member name on the path to one or more selected fields.
+	 */
+	private static final class Node {
+
+		final List<Node> children;
+
+		/**
+		 * The index of the path which ends here, or -1.
+		 */
+		int index;
+
+		final String name;
+
+		Node(String name) {
+			super();
+			this.children = new ArrayList<>(2);
+			this.index = -1;
+			this.name = name;
+		}
+
+		Node child(String childName) {
+			for (Node child : children) {
+				if (child.name.equals(childName)) {
+					return child;
+				}
+			}
+
+			Node child = new Node(childName);
+
+			children.add(child);
+
+			return child;
+		}
+
+		/**
+		 * Answer the child with the given name, without allocating.
+		 */
+		Node find(StringBuilder key) {
+			for (int i = 0, n = children.size(); i < n; ++i) {
+				Node child = children.get(i);
+
+				if (matches(child.name, key)) {
+					return child;
+				}
+			}
+
+			return null;
+		}
+
+	}
+
+	/**
+	 * The state of one read: the input, with its own buffer, and the
+	 * scratch space for member names and selected values.
+	 */
+	private static final class Parser {
+
+		private final char[] buffer;
+
+		private int end;
+
+		private final Reader input;
+
+		private final StringBuilder key;
+
+		private long offset;
+
+		private int position;
+
+		private final StringBuilder text;
+
+		private final String[] values;
+
+		Parser(Reader input, int size) {
+			super();
+			this.buffer = new char[8192];
+			this.end = 0;
+			this.input = input;
+			this.key = new StringBuilder(64);
+			this.offset = 0;
+			this.position = 0;
+			this.text = new StringBuilder(64);
+			this.values = new String[size];
+		}
+
+		private void expect(char expected) throws IOException {
+			int actual = nextToken();
+
+			if (actual != expected) {
+				throw malformed("expected '" + expected + "'");
+			}
+		}
+
+		private boolean fill() throws IOException {
+			offset += end;
+			position = 0;
+			end = input.read(buffer, 0, buffer.length);
+
+			if (end <= 0) {
+				end = 0;
+				return false;
+			}
+
+			return true;
+		}
+
+		private IOException malformed(String problem) {
+			return new IOException("Malformed JSON at offset " + (offset + position) + ": " + problem);
+		}
+
+		private void members(Node node) throws IOException {
+			if (peekToken() == '}') {
+				position += 1;
+				return;
+			}
+
+			for (;;) {
+				expect('"');
+				readString(key);
+				expect(':');
+				value(node.find(key));
+
+				int c = nextToken();
+
+				if (c == '}') {
+					return;
+				} else if (c != ',') {
+					throw malformed("expected ',' or '}'");
+				}
+			}
+		}
+
+		private int next() throws IOException {
+			if (position >= end && !fill()) {
+				return -1;
+			}
+
+			return buffer[position++];
+		}
+
+		/**
+		 * Answer the next character which isn't white space, consuming it.
+		 */
+		private int nextToken() throws IOException {
+			for (;;) {
+				int c = next();
+
+				if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+					return c;
+				}
+			}
+		}
+
+		private int peekToken() throws IOException {
+			int c = nextToken();
+
+			if (c >= 0) {
+				position -= 1;
+			}
+
+			return c;
+		}
+
+		String[] read(Node root) throws IOException {
+			if (peekToken() >= 0) {
+				value(root);
+			}
+
+			return values;
+		}
+
+		/**
+		 * Read a number or literal into text, answering its value.
+		 */
+		private String readAtom(int first) throws IOException {
+			text.setLength(0);
+			text.append((char) first);
+
+			for (;;) {
+				if (position >= end && !fill()) {
+					break;
+				}
+
+				char c = buffer[position];
+
+				if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+					break;
+				}
+
+				text.append(c);
+				position += 1;
+			}
+
+			if (first == 't' || first == 'f' || first == 'n') {
+				if (matches("true", text)) {
+					return "true";
+				} else if (matches("false", text)) {
+					return "false";
+				} else if (matches("null", text)) {
+					return null;
+				}
+
+				throw malformed("unexpected '" + text + "'");
+			}
+
+			String number = text.toString();
+
+			try {
+				if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+					return Double.toString(Double.parseDouble(number));
+				}
+
+				return Long.toString(Long.parseLong(number));
+			} catch (NumberFormatException e) {
+				throw malformed("invalid number '" + number + "'");
+			}
+		}
+
+		/**
+		 * Read the rest of a string (after the opening quote) into the given
+		 * buffer, or skip it if the buffer is null.
+		 */
+		private void readString(StringBuilder into) throws IOException {
+			if (into != null) {
+				into.setLength(0);
+			}
+
+			for (;;) {
+				int c = next();
+
+				if (c < 0) {
+					throw malformed("unterminated string");
+				} else if (c == '"') {
+					return;
+				} else if (c == '\\') {
+					c = next();
+
+					switch (c) {
+					case 'b':
+						c = '\b';
+						break;
+					case 'f':
+						c = '\f';
+						break;
+					case 'n':
+						c = '\n';
+						break;
+					case 'r':
+						c = '\r';
+						break;
+					case 't':
+						c = '\t';
+						break;
+					case 'u':
+						c = 0;
+
+						for (int i = 0; i < 4; ++i) {
+							int digit = Character.digit(next(), 16);
+
+							if (digit < 0) {
+								throw malformed("invalid unicode escape");
+							}
+
+							c = (c << 4) | digit;
+						}
+						break;
+					case '"':
+					case '\\':
+					case '/':
+						break;
+					default:
+						throw malformed("invalid escape");
+					}
+				}
+
+				if (into != null) {
+					into.append((char) c);
+				}
+			}
+		}
+
+		private void skipAtom() throws IOException {
+			for (;;) {
+				if (position >= end && !fill()) {
+					return;
+				}
+
+				char c = buffer[position];
+
+				if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+					return;
+				}
+
+				position += 1;
+			}
+		}
+
+		/**
+		 * Skip the rest of an object or array, whose opening bracket has been read.
+		 */
+		private void skipContainer() throws IOException {
+			int depth = 1;
+
+			while (depth > 0) {
+				int c = next();
+
+				switch (c) {
+				case -1:
+					throw malformed("unexpected end of input");
+				case '"':
+					readString(null);
+					break;
+				case '{':
+				case '[':
+					depth += 1;
+					break;
+				case '}':
+				case ']':
+					depth -= 1;
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Read a value: a selected field is kept, members on the path to a
+		 * selected field are read, and anything else is skipped.
+		 */
+		private void value(Node node) throws IOException {
+			int c = nextToken();
+
+			switch (c) {
+			case -1:
+				throw malformed("unexpected end of input");
+			case '{':
+				if (node != null && !node.children.isEmpty()) {
+					members(node);
+				} else {
+					skipContainer();
+				}
+				break;
+			case '[':
+				skipContainer();
+				break;
+			case '"':
+				if (node != null && node.index >= 0) {
+					readString(text);
+					values[node.index] = text.toString();
+				} else {
+					readString(null);
+				}
+				break;
+			default:
+				if (node != null && node.index >= 0) {
+					values[node.index] = readAtom(c);
+				} else {
+					skipAtom();
+				}
+				break;
+			}
+		}
+
+	}
+
+	/**
+	 * Answer a projection selecting the fields with the given paths.
+	 *
+	 * @throws IllegalArgumentException if a path is empty or uses wildcards
+	 */
+	public static JsonProjection compile(Collection<String> paths) {
+		return new JsonProjection(new ArrayList<>(paths));
+	}
+
+	public static JsonProjection compile(String... paths) {
+		return compile(Arrays.asList(paths));
+	}
+
+	private static boolean matches(String name, StringBuilder text) {
+		int length = name.length();
+
+		if (length != text.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < length; ++i) {
+			if (name.charAt(i) != text.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private final List<String> paths;
+
+	private final Node root;
+
+	private JsonProjection(List<String> paths) {
+		super();
+		this.paths = Collections.unmodifiableList(paths);
+		this.root = new Node("");
+
+		for (int index = 0, count = paths.size(); index < count; ++index) {
+			String path = paths.get(index);
+			Node node = root;
+
+			for (String segment : path.split("\\.", -1)) {
+				if (segment.isEmpty() || segment.equals("*")) {
+					throw new IllegalArgumentException("Unsupported path: " + path);
+				}
+
+				node = node.child(segment);
+			}
+
+			node.index = index;
+		}
+	}
+
+	public List<String> getPaths() {
+		return paths;
+	}
+
+	/**
+	 * Answer the position of the given path in the values answered by read(),
+	 * or -1 if it is not selected.
+	 */
+	public int indexOf(String path) {
+		return paths.indexOf(path);
+	}
+
+	/**
+	 * Read the given JSON document, answering the values of the selected
+	 * fields, in the order of the paths.
+	 *
+	 * @throws IOException if the input cannot be read or is malformed
+	 */
+	public String[] read(Reader input) throws IOException {
+		return new Parser(input, paths.size()).read(root);
+	}
+
+	/**
+	 * Answer the given values as nested maps, shaped like the document
+	 * they were read from, for code which navigates with Util.select().
+	 */
+	public Map<String, Object> toTree(String[] values) {
+		Map<String, Object> tree = new LinkedHashMap<>();
+
+		for (int index = 0, count = paths.size(); index < count; ++index) {
+			if (values[index] == null) {
+				continue;
+			}
+
+			String[] segments = paths.get(index).split("\\.");
+			Map<String, Object> parent = tree;
+
+			for (int i = 0; i < segments.length - 1; ++i) {
+				Object child = parent.get(segments[i]);
+
+				if (!(child instanceof Map<?, ?>)) {
+					child = new LinkedHashMap<String, Object>();
+					parent.put(segments[i], child);
+				}
+
+				@SuppressWarnings("unchecked")
+				Map<String, Object> map = (Map<String, Object>) child;
+
+				parent = map;
+			}
+
+			parent.put(segments[segments.length - 1], values[index]);
+		}
+
+		return tree;
+	}
+
+}
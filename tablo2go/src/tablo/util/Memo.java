@@ -0,0 +1,157 @@
+package tablo.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the results of loading values by key: a value loaded earlier
+ * is answered again (the least recently used are forgotten beyond a fixed
+ * number), and concurrent requests for a value being loaded wait for that
+ * load rather than starting another.
+ */
+public final class Memo<K, V> {
+
+	/**
+	 * Loads the value for a key.
+	 */
+	public interface Loader<K, V> {
+
+		V load(K key) throws IOException;
+
+	}
+
+	/**
+	 * The values loaded, least recently used first.
+	 */
+	private final Map<K, V> completed;
+
+	/**
+	 * The number of requests answered by a value loaded (or being loaded)
+	 * for another request.
+	 */
+	private final AtomicLong hits;
+
+	/**
+	 * The loads under way.
+	 */
+	private final ConcurrentMap<K, CompletableFuture<V>> loading;
+
+	/**
+	 * The number of requests which loaded a value.
+	 */
+	private final AtomicLong misses;
+
+	/**
+	 * @param capacity the number of values to remember
+	 */
+	public Memo(int capacity) {
+		super();
+		this.completed = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > capacity;
+			}
+
+		};
+		this.hits = new AtomicLong();
+		this.loading = new ConcurrentHashMap<>();
+		this.misses = new AtomicLong();
+	}
+
+	/**
+	 * Answer the value for the given key, loading it with the given loader
+	 * unless it has been loaded already or is being loaded. Failures are not
+	 * remembered, but are reported to the requests waiting for the load.
+	 */
+	public V get(K key, Loader<K, V> loader) throws IOException {
+		V value = lookup(key);
+
+		if (value != null) {
+			hits.incrementAndGet();
+			return value;
+		}
+
+		CompletableFuture<V> load = new CompletableFuture<>();
+		CompletableFuture<V> pending = loading.putIfAbsent(key, load);
+
+		if (pending != null) {
+			hits.incrementAndGet();
+			return join(pending);
+		}
+
+		try {
+			// another load may have finished since the lookup
+			value = lookup(key);
+
+			if (value != null) {
+				hits.incrementAndGet();
+				load.complete(value);
+				return value;
+			}
+
+			misses.incrementAndGet();
+			value = loader.load(key);
+
+			if (value != null) {
+				synchronized (completed) {
+					completed.put(key, value);
+				}
+			}
+
+			load.complete(value);
+
+			return value;
+		} catch (IOException e) {
+			load.completeExceptionally(new UncheckedIOException(e));
+			throw e;
+		} catch (RuntimeException e) {
+			load.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key, load);
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private V join(CompletableFuture<V> pending) throws IOException {
+		try {
+			return pending.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) cause).getCause();
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private V lookup(K key) {
+		synchronized (completed) {
+			return completed.get(key);
+		}
+	}
+
+}